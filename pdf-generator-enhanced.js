@@ -12,6 +12,10 @@ class EnhancedPDFGenerator {
         this.settingsPath = path.join(__dirname, 'config', 'settings.json');
         this.logPath = path.join(__dirname, 'logs', 'rapporti.log');
         this.settings = null;
+        // Coda condivisa tra i pod: se impostata i rapporti vengono generati dai worker
+        this.queueDir = process.env.REPORT_QUEUE_DIR || '';
+        this.queueTimeoutMs = parseInt(process.env.REPORT_QUEUE_TIMEOUT_MS || '', 10) || 15 * 60 * 1000;
+        this.queuePollMs = 500;
     }
 
     // Trova l'eseguibile Java su Windows con fallback
@@ -170,6 +174,48 @@ class EnhancedPDFGenerator {
         }
     }
 
+    // Copia un allegato (firma, logo) sul volume della coda, leggibile da tutti i worker
+    async copyToQueue(filePath) {
+        const dir = path.join(this.queueDir, 'allegati');
+        await fs.mkdir(dir, { recursive: true });
+        const dest = path.join(dir, `${Date.now()}_${Math.random().toString(36).slice(2, 10)}${path.extname(filePath)}`);
+        await fs.copyFile(filePath, dest);
+        return dest;
+    }
+
+    async removeQueuedFiles(files) {
+        await Promise.all(files.map(file => fs.unlink(file).catch(() => {})));
+    }
+
+    /**
+     * Attende il risultato di un lavoro accodato e lo sposta in outputPath.
+     * Il lavoro è fallito se compare in falliti/ (tentativi esauriti).
+     */
+    async waitForQueuedResult(id, outputPath) {
+        const result = path.join(this.queueDir, 'risultati', `${id}.pdf`);
+        const failed = path.join(this.queueDir, 'falliti', `${id}.job`);
+        const deadline = Date.now() + this.queueTimeoutMs;
+        for (;;) {
+            // eslint-disable-next-line no-await-in-loop
+            if (await fs.access(result).then(() => true).catch(() => false)) {
+                // Volumi diversi: rename non è possibile, la copia resta nel kernel
+                await fs.copyFile(result, outputPath);
+                await fs.unlink(result).catch(() => {});
+                return;
+            }
+            // eslint-disable-next-line no-await-in-loop
+            if (await fs.access(failed).then(() => true).catch(() => false)) {
+                const reason = await fs.readFile(path.join(this.queueDir, 'falliti', `${id}.errore`), 'utf8').catch(() => '');
+                throw new Error(`Lavoro ${id} fallito nella coda: ${reason}`);
+            }
+            if (Date.now() > deadline) {
+                throw new Error(`Lavoro ${id} non completato entro ${this.queueTimeoutMs}ms`);
+            }
+            // eslint-disable-next-line no-await-in-loop
+            await new Promise(r => setTimeout(r, this.queuePollMs));
+        }
+    }
+
     /**
      * Genera il nome file con timestamp
      */
@@ -324,12 +370,28 @@ class EnhancedPDFGenerator {
                 ).join(';') : '';
             }).filter(str => str).join('|');
 
+            // Con la coda il rapporto è generato da un worker: gli allegati vanno sul volume condiviso
+            const queuedFiles = [];
+            if (this.queueDir) {
+                if (signaturePath) {
+                    signaturePath = await this.copyToQueue(signaturePath);
+                    queuedFiles.push(signaturePath);
+                }
+                if (finalLogoPath) {
+                    finalLogoPath = await this.copyToQueue(finalLogoPath);
+                    queuedFiles.push(finalLogoPath);
+                }
+            }
+
             return new Promise((resolve, reject) => {
                 // Esegui il generatore Java con i parametri corretti
-                const cp = ['lib/*', '.'].join(path.delimiter);
+                const cp = [path.join('target', 'classes'), 'lib/*', '.'].join(path.delimiter);
                 const javaArgs = [
                     '-cp', cp,
                     'ReportGenerator',
+                    // Il PDF arriva su stdout, collegato direttamente al file del rapporto;
+                    // con la coda stdout riporta l'identificativo del lavoro
+                    this.queueDir ? `--accoda=${this.queueDir}` : '--stdout',
                     operatoreName,
                     kitStrings,
                     sedeFinale,
@@ -342,14 +404,27 @@ class EnhancedPDFGenerator {
                 (async () => {
                     const javaCmd = await this.findJavaExecutable();
                     await this.writeLog(`Eseguibile Java selezionato: ${javaCmd}`, operatoreName, 'INFO');
-                    const javaProcess = spawn(javaCmd, javaArgs, { cwd: __dirname });
+                    // Il processo Java scrive il PDF nel file senza passare da Node
+                    const outputFile = this.queueDir ? null : await fs.open(outputPath, 'w');
+                    let javaProcess;
+                    try {
+                        javaProcess = spawn(javaCmd, javaArgs, {
+                            cwd: __dirname,
+                            stdio: ['ignore', outputFile ? outputFile.fd : 'pipe', 'pipe']
+                        });
+                    } catch (error) {
+                        if (outputFile) await outputFile.close();
+                        throw error;
+                    }
 
                     let javaOutput = '';
                     let javaError = '';
 
-                    javaProcess.stdout.on('data', (data) => {
-                        javaOutput += data.toString();
-                    });
+                    if (!outputFile) {
+                        javaProcess.stdout.on('data', (data) => {
+                            javaOutput += data.toString();
+                        });
+                    }
 
                     javaProcess.stderr.on('data', (data) => {
                         javaError += data.toString();
@@ -367,40 +442,32 @@ class EnhancedPDFGenerator {
                             try { if (tempSignaturePath) await fs.unlink(tempSignaturePath); } catch (e) {}
                             try { if (tempLogoPath) await fs.unlink(tempLogoPath); } catch (e) {}
 
-                            if (code === 0) {
-                                // Il Java genera il PDF nella directory corrente con nome fisso
-                                // Trova il PDF generato nelle possibili directory
-                                const candidates = [
-                                    path.join(__dirname, 'rapporto_cassette.pdf'),
-                                    path.join(__dirname, 'output', 'rapporto_cassette.pdf'),
-                                    path.join(__dirname, 'reports', 'output', 'rapporto_cassette.pdf')
-                                ];
-                                let generatedPdfPath = null;
-                                for (const cand of candidates) {
-                                    // eslint-disable-next-line no-await-in-loop
-                                    const exists = await fs.access(cand).then(() => true).catch(() => false);
-                                    if (exists) { generatedPdfPath = cand; break; }
-                                }
-
-                                if (generatedPdfPath) {
-                                    await fs.rename(generatedPdfPath, outputPath);
-                                    
-                                    const duration = Date.now() - startTime;
-                                    await this.writeLog(`Rapporto generato con successo: ${fileName} (${duration}ms)`, operatoreName, 'SUCCESS');
-                                    
-                                    resolve({
-                                        success: true,
-                                        fileName: fileName,
-                                        outputPath: `./report/${fileName}`,
-                                        fullPath: outputPath,
-                                        message: 'PDF generato con successo',
-                                        duration: duration
-                                    });
-                                } else {
-                                    throw new Error('PDF non trovato dopo la generazione');
+                            if (code === 0 && this.queueDir) {
+                                const id = javaOutput.trim().split(/\r?\n/).pop();
+                                await this.writeLog(`Rapporto accodato come ${id}`, operatoreName, 'INFO');
+                                try {
+                                    await this.waitForQueuedResult(id, outputPath);
+                                } finally {
+                                    await this.removeQueuedFiles(queuedFiles);
                                 }
+                            }
+                            if (code === 0) {
+                                const duration = Date.now() - startTime;
+                                await this.writeLog(`Rapporto generato con successo: ${fileName} (${duration}ms)`, operatoreName, 'SUCCESS');
+                                
+                                resolve({
+                                    success: true,
+                                    fileName: fileName,
+                                    outputPath: `./report/${fileName}`,
+                                    fullPath: outputPath,
+                                    message: 'PDF generato con successo',
+                                    duration: duration
+                                });
                             } else {
-                                throw new Error(`Processo Java terminato con codice: ${code}\nOutput: ${javaOutput}\nError: ${javaError}`);
+                                // Rapporto incompleto: non deve restare scaricabile
+                                try { await fs.unlink(outputPath); } catch (e) {}
+                                await this.removeQueuedFiles(queuedFiles);
+                                throw new Error(`Processo Java terminato con codice: ${code}\nError: ${javaError}`);
                             }
                         } catch (error) {
                             await this.writeLog(`Errore generazione rapporto: ${error.message}`, operatoreName, 'ERROR');
@@ -414,12 +481,17 @@ class EnhancedPDFGenerator {
                             operatoreName,
                             'ERROR'
                         );
-                        // Pulisci eventuali file immagine temporanei
+                        // Pulisci eventuali file immagine temporanei e il rapporto vuoto
                         try { if (tempSignaturePath) await fs.unlink(tempSignaturePath); } catch (e) {}
                         try { if (tempLogoPath) await fs.unlink(tempLogoPath); } catch (e) {}
+                        try { await fs.unlink(outputPath); } catch (e) {}
+                        await this.removeQueuedFiles(queuedFiles);
                         reject(error);
                     });
-                })();
+
+                    // Il processo figlio ha la propria copia del descrittore
+                    if (outputFile) await outputFile.close();
+                })().catch(reject);
             });
 
         } catch (error) {
@@ -0,0 +1,398 @@
+// AggregatoreInventario.java
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Motore di aggregazione per il cruscotto di gestione
+ *
+ * Calcola completezza, articoli sotto soglia, quantità eccessive e fasce di
+ * scadenza su tutti i kit di tutte le sedi, lavorando su array primitivi
+ * (quantità, massimi, soglie, giorni a scadenza) invece che oggetto per oggetto.
+ * Le sedi e i kit sono rappresentati da intervalli contigui negli array, il
+ * calcolo è ripartito per kit su un pool fork-join e il conteggio di ogni
+ * intervallo usa l'API jdk.incubator.vector se il modulo è caricato
+ * (java --add-modules jdk.incubator.vector), altrimenti un ciclo scalare.
+ *
+ * Le regole sono quelle di {@link ReportGenerator.Articolo}: completo se
+ * quantitaAttuale >= quantitaMassima, sotto soglia se quantitaAttuale < sogliaMinima,
+ * eccessivo se quantitaAttuale > quantitaMassima.
+ */
+public final class AggregatoreInventario {
+
+    /** Valore di {@code giorni} per gli articoli senza data di scadenza. */
+    public static final int SENZA_SCADENZA = Integer.MIN_VALUE;
+
+    // Indici dei contatori calcolati per ogni kit
+    static final int COMPLETI = 0;
+    static final int SOTTO_SOGLIA = 1;
+    static final int ECCESSIVI = 2;
+    static final int SCADUTI = 3;
+    static final int ENTRO_30 = 4;
+    static final int ENTRO_90 = 5;
+    static final int OLTRE_90 = 6;
+    static final int SENZA_DATA = 7;
+    static final int NUMERO_CONTATORI = 8;
+
+    // Articoli oltre i quali un intervallo di kit viene suddiviso tra i thread
+    private static final int SOGLIA_PARTIZIONE = 32 * 1024;
+
+    private static final Conteggio CONTEGGIO = scegliConteggio();
+
+    /**
+     * Conteggio dei contatori su un intervallo di articoli [da, a), sommati in
+     * {@code risultato[base .. base + NUMERO_CONTATORI)}.
+     */
+    interface Conteggio {
+        void conta(Colonne colonne, int da, int a, int[] risultato, int base);
+    }
+
+    private final ForkJoinPool pool;
+
+    public AggregatoreInventario() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public AggregatoreInventario(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Indica se è in uso l'implementazione vettoriale.
+     */
+    public static boolean isVettoriale() {
+        return !(CONTEGGIO instanceof ConteggioScalare);
+    }
+
+    public Risultato aggrega(Colonne colonne) {
+        int numeroKit = colonne.numeroKit();
+        int[] perKit = new int[numeroKit * NUMERO_CONTATORI];
+        if (numeroKit > 0) {
+            pool.invoke(new AggregazioneKit(colonne, perKit, 0, numeroKit));
+        }
+
+        Riepilogo globale = new Riepilogo("TOTALE");
+        List<Riepilogo> sedi = new ArrayList<>(colonne.numeroSedi());
+        for (int s = 0; s < colonne.numeroSedi(); s++) {
+            Riepilogo sede = new Riepilogo(colonne.nomiSedi[s]);
+            for (int k = colonne.inizioKitSede[s]; k < colonne.inizioKitSede[s + 1]; k++) {
+                int articoliKit = colonne.inizioArticoliKit[k + 1] - colonne.inizioArticoliKit[k];
+                sede.aggiungiKit(perKit, k * NUMERO_CONTATORI, articoliKit);
+            }
+            sedi.add(sede);
+            globale.aggiungi(sede);
+        }
+        return new Risultato(sedi, globale, perKit, colonne);
+    }
+
+    private static Conteggio scegliConteggio() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Caricata per riflessione: senza il modulo la classe non deve essere risolta
+                return (Conteggio) Class.forName("ConteggioVettoriale").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Ripiego sull'implementazione scalare
+            }
+        }
+        return new ConteggioScalare();
+    }
+
+    private static final class AggregazioneKit extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Colonne colonne;
+        private final int[] perKit;
+        private final int primoKit;
+        private final int ultimoKit;
+
+        AggregazioneKit(Colonne colonne, int[] perKit, int primoKit, int ultimoKit) {
+            this.colonne = colonne;
+            this.perKit = perKit;
+            this.primoKit = primoKit;
+            this.ultimoKit = ultimoKit;
+        }
+
+        @Override
+        protected void compute() {
+            int articoli = colonne.inizioArticoliKit[ultimoKit] - colonne.inizioArticoliKit[primoKit];
+            if (articoli <= SOGLIA_PARTIZIONE || ultimoKit - primoKit == 1) {
+                for (int k = primoKit; k < ultimoKit; k++) {
+                    CONTEGGIO.conta(colonne, colonne.inizioArticoliKit[k], colonne.inizioArticoliKit[k + 1],
+                            perKit, k * NUMERO_CONTATORI);
+                }
+                return;
+            }
+            int medio = (primoKit + ultimoKit) >>> 1;
+            invokeAll(new AggregazioneKit(colonne, perKit, primoKit, medio),
+                      new AggregazioneKit(colonne, perKit, medio, ultimoKit));
+        }
+    }
+
+    static final class ConteggioScalare implements Conteggio {
+        @Override
+        public void conta(Colonne colonne, int da, int a, int[] risultato, int base) {
+            int completi = 0, sottoSoglia = 0, eccessivi = 0;
+            int scaduti = 0, entro30 = 0, entro90 = 0, oltre90 = 0, senzaData = 0;
+            for (int i = da; i < a; i++) {
+                int quantita = colonne.quantita[i];
+                int massimo = colonne.massimo[i];
+                if (quantita >= massimo) completi++;
+                if (quantita < colonne.soglia[i]) sottoSoglia++;
+                if (quantita > massimo) eccessivi++;
+
+                int giorni = colonne.giorni[i];
+                if (giorni == SENZA_SCADENZA) senzaData++;
+                else if (giorni <= 0) scaduti++;
+                else if (giorni <= 30) entro30++;
+                else if (giorni <= 90) entro90++;
+                else oltre90++;
+            }
+            risultato[base + COMPLETI] += completi;
+            risultato[base + SOTTO_SOGLIA] += sottoSoglia;
+            risultato[base + ECCESSIVI] += eccessivi;
+            risultato[base + SCADUTI] += scaduti;
+            risultato[base + ENTRO_30] += entro30;
+            risultato[base + ENTRO_90] += entro90;
+            risultato[base + OLTRE_90] += oltre90;
+            risultato[base + SENZA_DATA] += senzaData;
+        }
+    }
+
+    /**
+     * Dati dell'inventario in forma colonnare. Gli articoli del kit {@code k} occupano
+     * l'intervallo [inizioArticoliKit[k], inizioArticoliKit[k + 1]) e i kit della sede
+     * {@code s} l'intervallo [inizioKitSede[s], inizioKitSede[s + 1]).
+     */
+    public static final class Colonne {
+        final int[] quantita;
+        final int[] massimo;
+        final int[] soglia;
+        final int[] giorni;
+        final int[] inizioArticoliKit;
+        final int[] inizioKitSede;
+        final String[] nomiKit;
+        final String[] nomiSedi;
+
+        private Colonne(Costruttore c) {
+            this.quantita = Arrays.copyOf(c.quantita, c.articoli);
+            this.massimo = Arrays.copyOf(c.massimo, c.articoli);
+            this.soglia = Arrays.copyOf(c.soglia, c.articoli);
+            this.giorni = Arrays.copyOf(c.giorni, c.articoli);
+            this.inizioArticoliKit = Arrays.copyOf(c.inizioArticoliKit, c.kit + 1);
+            this.inizioArticoliKit[c.kit] = c.articoli;
+            this.inizioKitSede = Arrays.copyOf(c.inizioKitSede, c.sedi + 1);
+            this.inizioKitSede[c.sedi] = c.kit;
+            this.nomiKit = Arrays.copyOf(c.nomiKit, c.kit);
+            this.nomiSedi = Arrays.copyOf(c.nomiSedi, c.sedi);
+        }
+
+        public int numeroArticoli() {
+            return quantita.length;
+        }
+
+        public int numeroKit() {
+            return nomiKit.length;
+        }
+
+        public int numeroSedi() {
+            return nomiSedi.length;
+        }
+
+        /**
+         * Costruisce le colonne dalle sezioni del modello, raggruppate per sede.
+         */
+        public static Colonne daSezioni(Map<String, List<ReportGenerator.Sezione>> kitPerSede) {
+            Costruttore costruttore = new Costruttore();
+            for (Map.Entry<String, List<ReportGenerator.Sezione>> sede : kitPerSede.entrySet()) {
+                costruttore.nuovaSede(sede.getKey());
+                for (ReportGenerator.Sezione sezione : sede.getValue()) {
+                    costruttore.nuovoKit(sezione.titolo);
+                    for (ReportGenerator.Articolo articolo : sezione.articoli) {
+                        costruttore.articolo(articolo);
+                    }
+                }
+            }
+            return costruttore.costruisci();
+        }
+    }
+
+    /**
+     * Riempimento incrementale delle colonne: sedi, kit e articoli vanno aggiunti
+     * in ordine (ogni articolo appartiene all'ultimo kit, ogni kit all'ultima sede).
+     */
+    public static final class Costruttore {
+        private int[] quantita = new int[1024];
+        private int[] massimo = new int[1024];
+        private int[] soglia = new int[1024];
+        private int[] giorni = new int[1024];
+        private int[] inizioArticoliKit = new int[64];
+        private int[] inizioKitSede = new int[16];
+        private String[] nomiKit = new String[64];
+        private String[] nomiSedi = new String[16];
+        private int articoli;
+        private int kit;
+        private int sedi;
+
+        public Costruttore nuovaSede(String nome) {
+            if (sedi + 1 >= inizioKitSede.length) {
+                inizioKitSede = Arrays.copyOf(inizioKitSede, inizioKitSede.length * 2);
+                nomiSedi = Arrays.copyOf(nomiSedi, nomiSedi.length * 2);
+            }
+            inizioKitSede[sedi] = kit;
+            nomiSedi[sedi] = nome;
+            sedi++;
+            return this;
+        }
+
+        public Costruttore nuovoKit(String nome) {
+            if (sedi == 0) {
+                throw new IllegalStateException("Aggiungere una sede prima dei kit");
+            }
+            if (kit + 1 >= inizioArticoliKit.length) {
+                inizioArticoliKit = Arrays.copyOf(inizioArticoliKit, inizioArticoliKit.length * 2);
+                nomiKit = Arrays.copyOf(nomiKit, nomiKit.length * 2);
+            }
+            inizioArticoliKit[kit] = articoli;
+            nomiKit[kit] = nome;
+            kit++;
+            return this;
+        }
+
+        public Costruttore articolo(int quantitaAttuale, int quantitaMassima, int sogliaMinima, int giorniAScadenza) {
+            if (kit == 0) {
+                throw new IllegalStateException("Aggiungere un kit prima degli articoli");
+            }
+            if (articoli == quantita.length) {
+                int capacita = quantita.length * 2;
+                quantita = Arrays.copyOf(quantita, capacita);
+                massimo = Arrays.copyOf(massimo, capacita);
+                soglia = Arrays.copyOf(soglia, capacita);
+                giorni = Arrays.copyOf(giorni, capacita);
+            }
+            quantita[articoli] = quantitaAttuale;
+            massimo[articoli] = quantitaMassima;
+            soglia[articoli] = sogliaMinima;
+            giorni[articoli] = giorniAScadenza;
+            articoli++;
+            return this;
+        }
+
+        public Costruttore articolo(ReportGenerator.Articolo articolo) {
+            boolean senzaData = articolo.scadenza.isEmpty() || articolo.scadenza.equals("N/D");
+            return articolo(articolo.quantitaAttuale, articolo.quantitaMassima, articolo.sogliaMinima,
+                    senzaData ? SENZA_SCADENZA : articolo.giorniAScadenza);
+        }
+
+        public Colonne costruisci() {
+            return new Colonne(this);
+        }
+    }
+
+    /**
+     * Totali di una sede o dell'intero inventario.
+     */
+    public static final class Riepilogo {
+        public final String nome;
+        public int kit;
+        public int kitCompleti;
+        public long articoli;
+        public long completi;
+        public long sottoSoglia;
+        public long eccessivi;
+        public long scaduti;
+        public long entro30Giorni;
+        public long entro90Giorni;
+        public long oltre90Giorni;
+        public long senzaScadenza;
+
+        Riepilogo(String nome) {
+            this.nome = nome;
+        }
+
+        void aggiungiKit(int[] perKit, int base, int articoliKit) {
+            kit++;
+            if (articoliKit > 0 && perKit[base + COMPLETI] == articoliKit) {
+                kitCompleti++;
+            }
+            articoli += articoliKit;
+            completi += perKit[base + COMPLETI];
+            sottoSoglia += perKit[base + SOTTO_SOGLIA];
+            eccessivi += perKit[base + ECCESSIVI];
+            scaduti += perKit[base + SCADUTI];
+            entro30Giorni += perKit[base + ENTRO_30];
+            entro90Giorni += perKit[base + ENTRO_90];
+            oltre90Giorni += perKit[base + OLTRE_90];
+            senzaScadenza += perKit[base + SENZA_DATA];
+        }
+
+        void aggiungi(Riepilogo altro) {
+            kit += altro.kit;
+            kitCompleti += altro.kitCompleti;
+            articoli += altro.articoli;
+            completi += altro.completi;
+            sottoSoglia += altro.sottoSoglia;
+            eccessivi += altro.eccessivi;
+            scaduti += altro.scaduti;
+            entro30Giorni += altro.entro30Giorni;
+            entro90Giorni += altro.entro90Giorni;
+            oltre90Giorni += altro.oltre90Giorni;
+            senzaScadenza += altro.senzaScadenza;
+        }
+
+        /**
+         * Percentuale di articoli completi, con la stessa definizione di
+         * {@link ReportGenerator.Sezione#calcolaPercentualeCompletezza()}.
+         */
+        public double percentualeCompletezza() {
+            return articoli == 0 ? 0.0 : (double) completi / articoli * 100.0;
+        }
+
+        public String toJson() {
+            return String.format(java.util.Locale.ROOT,
+                    "{\"nome\":\"%s\",\"kit\":%d,\"kitCompleti\":%d,\"articoli\":%d,\"completezza\":%.1f,"
+                    + "\"completi\":%d,\"sottoSoglia\":%d,\"eccessivi\":%d,\"scadenze\":{\"scaduti\":%d,"
+                    + "\"entro30\":%d,\"entro90\":%d,\"oltre90\":%d,\"senzaScadenza\":%d}}",
+                    nome.replace("\\", "\\\\").replace("\"", "\\\""), kit, kitCompleti, articoli,
+                    percentualeCompletezza(), completi, sottoSoglia, eccessivi, scaduti,
+                    entro30Giorni, entro90Giorni, oltre90Giorni, senzaScadenza);
+        }
+    }
+
+    /**
+     * Esito dell'aggregazione: riepiloghi per sede, totale globale e completezza per kit.
+     */
+    public static final class Risultato {
+        public final List<Riepilogo> sedi;
+        public final Riepilogo globale;
+        private final int[] perKit;
+        private final Colonne colonne;
+
+        Risultato(List<Riepilogo> sedi, Riepilogo globale, int[] perKit, Colonne colonne) {
+            this.sedi = sedi;
+            this.globale = globale;
+            this.perKit = perKit;
+            this.colonne = colonne;
+        }
+
+        public double percentualeCompletezzaKit(int kit) {
+            int articoliKit = colonne.inizioArticoliKit[kit + 1] - colonne.inizioArticoliKit[kit];
+            return articoliKit == 0 ? 0.0 : (double) perKit[kit * NUMERO_CONTATORI + COMPLETI] / articoliKit * 100.0;
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\"globale\":").append(globale.toJson()).append(",\"sedi\":[");
+            for (int i = 0; i < sedi.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('\n').append(sedi.get(i).toJson());
+            }
+            return sb.append("\n]}").toString();
+        }
+    }
+}
+//EOF
@@ -0,0 +1,374 @@
+// CaratteriUnicode.java
+
+import org.apache.fontbox.ttf.CmapLookup;
+import org.apache.fontbox.ttf.OS2WindowsMetricsTable;
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.encoding.GlyphList;
+import org.apache.pdfbox.pdmodel.font.encoding.WinAnsiEncoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Testo Unicode nei rapporti PDF con font TrueType incorporati
+ *
+ * I font standard Type1 (Helvetica) coprono solo WinAnsi: un nome di operatore o una
+ * descrizione con caratteri diversi farebbe fallire l'intero rapporto. Il testo
+ * interamente WinAnsi continua a usare i font standard, senza alcun costo aggiuntivo
+ * e con output identico; solo i caratteri fuori da WinAnsi vengono disegnati con il
+ * primo font TrueType della catena di riserva che li contiene (i caratteri che nessun
+ * font copre diventano "?").
+ *
+ * I font di riserva sono incorporati con {@link PDType0Font} ridotto ai glifi usati.
+ * {@code save} esegue da sé la riduzione, mentre {@link PdfLinearizzato} scrive il
+ * documento senza passare da {@code save} e richiede prima {@link #incorpora()}.
+ * Il font analizzato e le sue metriche restano in cache per tutta la JVM; PDFBox non
+ * chiude il font condiviso perché viene caricato senza trasferirne la proprietà.
+ * Il sottoinsieme invece è calcolato per ogni documento: {@code save} lo rigenera
+ * comunque per i font registrati, e il costo (pochi millisecondi) riguarda solo i
+ * rapporti con caratteri fuori da WinAnsi.
+ */
+public final class CaratteriUnicode {
+
+    private static final String[] DIRECTORY_FONT = {
+        "/usr/share/fonts", "/usr/local/share/fonts", System.getProperty("user.home") + "/.fonts",
+        "/Library/Fonts", "/System/Library/Fonts", "C:/Windows/Fonts"
+    };
+    private static final String[] FONT_REGOLARI = {
+        "DejaVuSans.ttf", "LiberationSans-Regular.ttf", "NotoSans-Regular.ttf", "FreeSans.ttf", "arial.ttf"
+    };
+    private static final String[] FONT_GRASSETTO = {
+        "DejaVuSans-Bold.ttf", "LiberationSans-Bold.ttf", "NotoSans-Bold.ttf", "FreeSansBold.ttf", "arialbd.ttf"
+    };
+    private static final char SOSTITUTO = '?';
+
+    private static volatile List<Path> percorsiRegolari;
+    private static volatile List<Path> percorsiGrassetto;
+    private static List<FontCaricato> catenaRegolare;
+    private static List<FontCaricato> catenaGrassetto;
+
+    private static final Map<PDType1Font, boolean[]> copertureWinAnsi = new ConcurrentHashMap<>();
+
+    private final PDDocument document;
+    private final Map<FontCaricato, PDType0Font> incorporati = new LinkedHashMap<>();
+    private PDType1Font fontCorrente;
+    private float dimensioneCorrente;
+
+    public CaratteriUnicode(PDDocument document) {
+        this.document = document;
+    }
+
+    /**
+     * Imposta i font di riserva da usare al posto di quelli cercati nelle directory
+     * di sistema. Va chiamato prima della prima generazione.
+     */
+    public static synchronized void configura(List<Path> regolari, List<Path> grassetto) {
+        percorsiRegolari = regolari;
+        percorsiGrassetto = grassetto;
+        catenaRegolare = null;
+        catenaGrassetto = null;
+    }
+
+    /**
+     * Larghezza del testo in punti, come {@code getStringWidth / 1000 * dimensione}
+     * del font standard ma tenendo conto dei caratteri disegnati con i font di riserva.
+     */
+    public static float larghezza(PDType1Font base, String testo, float dimensione) throws IOException {
+        if (isWinAnsi(base, testo)) {
+            return base.getStringWidth(testo) / 1000 * dimensione;
+        }
+        List<FontCaricato> catena = catena(base);
+        float totale = 0;
+        StringBuilder standard = new StringBuilder();
+        for (int i = 0; i < testo.length(); ) {
+            int codice = testo.codePointAt(i);
+            i += Character.charCount(codice);
+            if (isWinAnsi(base, codice)) {
+                standard.appendCodePoint(codice);
+                continue;
+            }
+            FontCaricato font = fontPer(catena, codice);
+            if (font != null) {
+                totale += font.larghezza(font.glifo(codice));
+            } else {
+                standard.append(SOSTITUTO);
+            }
+        }
+        totale += base.getStringWidth(standard.toString());
+        return totale / 1000 * dimensione;
+    }
+
+    /**
+     * Sostituisce {@code setFont}: imposta il font standard e ne ricorda la
+     * dimensione per le successive chiamate a {@link #mostra}.
+     */
+    public void imposta(PDPageContentStream contentStream, PDType1Font base, float dimensione) throws IOException {
+        contentStream.setFont(base, dimensione);
+        fontCorrente = base;
+        dimensioneCorrente = dimensione;
+    }
+
+    /**
+     * Sostituisce {@code showText}: il testo WinAnsi va direttamente al font standard,
+     * il resto viene spezzato in tratti disegnati ciascuno con il proprio font.
+     */
+    public void mostra(PDPageContentStream contentStream, String testo) throws IOException {
+        if (fontCorrente == null) {
+            throw new IllegalStateException("Font non impostato: usare imposta() prima di mostra()");
+        }
+        if (isWinAnsi(fontCorrente, testo)) {
+            contentStream.showText(testo);
+            return;
+        }
+        List<FontCaricato> catena = catena(fontCorrente);
+        PDFont fontTratto = fontCorrente;
+        PDFont fontAttivo = fontCorrente;
+        StringBuilder tratto = new StringBuilder();
+        for (int i = 0; i < testo.length(); ) {
+            int codice = testo.codePointAt(i);
+            i += Character.charCount(codice);
+            PDFont font;
+            if (isWinAnsi(fontCorrente, codice)) {
+                font = fontCorrente;
+            } else {
+                FontCaricato caricato = fontPer(catena, codice);
+                if (caricato != null) {
+                    font = incorporato(caricato);
+                } else {
+                    font = fontCorrente;
+                    codice = SOSTITUTO;
+                }
+            }
+            if (font != fontTratto && tratto.length() > 0) {
+                fontAttivo = scriviTratto(contentStream, fontAttivo, fontTratto, tratto);
+            }
+            fontTratto = font;
+            tratto.appendCodePoint(codice);
+        }
+        fontAttivo = scriviTratto(contentStream, fontAttivo, fontTratto, tratto);
+        // Il chiamante si aspetta ancora il font standard attivo
+        if (fontAttivo != fontCorrente) {
+            contentStream.setFont(fontCorrente, dimensioneCorrente);
+        }
+    }
+
+    /**
+     * Riduce i font di riserva usati ai soli glifi disegnati. Serve solo prima di
+     * {@link PdfLinearizzato#scrivi}, dopo l'ultimo testo: {@code save} lo fa già.
+     */
+    public void incorpora() throws IOException {
+        for (Map.Entry<FontCaricato, PDType0Font> voce : incorporati.entrySet()) {
+            synchronized (voce.getKey()) {
+                voce.getValue().subset();
+            }
+        }
+    }
+
+    private PDFont scriviTratto(PDPageContentStream contentStream, PDFont fontAttivo, PDFont font,
+                                StringBuilder tratto) throws IOException {
+        if (font != fontAttivo) {
+            contentStream.setFont(font, dimensioneCorrente);
+        }
+        contentStream.showText(tratto.toString());
+        tratto.setLength(0);
+        return font;
+    }
+
+    private PDType0Font incorporato(FontCaricato font) throws IOException {
+        PDType0Font incorporato = incorporati.get(font);
+        if (incorporato == null) {
+            // Senza chiusura del font: il TrueTypeFont resta condiviso tra i documenti
+            synchronized (font) {
+                incorporato = PDType0Font.load(document, font.ttf, true);
+            }
+            incorporati.put(font, incorporato);
+        }
+        return incorporato;
+    }
+
+    // ---- Copertura WinAnsi dei font standard ----
+
+    private static boolean isWinAnsi(PDType1Font base, String testo) {
+        boolean[] copertura = copertura(base);
+        for (int i = 0; i < testo.length(); i++) {
+            if (!copertura[testo.charAt(i)]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWinAnsi(PDType1Font base, int codice) {
+        return codice <= Character.MAX_VALUE && copertura(base)[codice];
+    }
+
+    // Caratteri BMP che il font standard sa codificare, ricavati una volta dalla tabella WinAnsi
+    private static boolean[] copertura(PDType1Font base) {
+        return copertureWinAnsi.computeIfAbsent(base, font -> {
+            boolean[] copertura = new boolean[Character.MAX_VALUE + 1];
+            GlyphList glifi = GlyphList.getAdobeGlyphList();
+            for (String nome : WinAnsiEncoding.INSTANCE.getCodeToNameMap().values()) {
+                String unicode = glifi.toUnicode(nome);
+                if (unicode == null || unicode.length() != 1) {
+                    continue;
+                }
+                try {
+                    font.encode(unicode);
+                    copertura[unicode.charAt(0)] = true;
+                } catch (IOException | IllegalArgumentException e) {
+                    // Glifo assente dal font standard: resta ai font di riserva
+                }
+            }
+            return copertura;
+        });
+    }
+
+    // ---- Catene di font di riserva ----
+
+    private static FontCaricato fontPer(List<FontCaricato> catena, int codice) {
+        for (FontCaricato font : catena) {
+            if (font.glifo(codice) != 0) {
+                return font;
+            }
+        }
+        return null;
+    }
+
+    private static synchronized List<FontCaricato> catena(PDType1Font base) {
+        if (catenaRegolare == null) {
+            Map<String, Path> trovati = percorsiRegolari == null || percorsiGrassetto == null ? cercaFontDiSistema() : null;
+            catenaRegolare = carica(percorsiRegolari != null ? percorsiRegolari : scegli(trovati, FONT_REGOLARI));
+            List<FontCaricato> grassetto = new ArrayList<>(
+                    carica(percorsiGrassetto != null ? percorsiGrassetto : scegli(trovati, FONT_GRASSETTO)));
+            // Un glifo assente dai font in grassetto è meglio in tondo che sostituito
+            grassetto.addAll(catenaRegolare);
+            catenaGrassetto = grassetto;
+        }
+        return isGrassetto(base) ? catenaGrassetto : catenaRegolare;
+    }
+
+    private static boolean isGrassetto(PDType1Font base) {
+        return base.getName().toLowerCase(Locale.ROOT).contains("bold");
+    }
+
+    private static List<FontCaricato> carica(List<Path> percorsi) {
+        List<FontCaricato> catena = new ArrayList<>();
+        for (Path percorso : percorsi) {
+            try {
+                catena.add(FontCaricato.carica(percorso));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("⚠️ Font di riserva non utilizzabile: " + percorso + " (" + e.getMessage() + ")");
+            }
+        }
+        return catena;
+    }
+
+    private static List<Path> scegli(Map<String, Path> trovati, String[] nomi) {
+        List<Path> percorsi = new ArrayList<>();
+        for (String nome : nomi) {
+            Path percorso = trovati.get(nome.toLowerCase(Locale.ROOT));
+            if (percorso != null) {
+                percorsi.add(percorso);
+            }
+        }
+        return percorsi;
+    }
+
+    // File .ttf delle directory di sistema, per nome in minuscolo
+    private static Map<String, Path> cercaFontDiSistema() {
+        Map<String, Path> trovati = new HashMap<>();
+        for (String directory : DIRECTORY_FONT) {
+            Path radice = Paths.get(directory);
+            if (!Files.isDirectory(radice)) {
+                continue;
+            }
+            try (Stream<Path> file = Files.walk(radice, 4)) {
+                file.filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".ttf"))
+                        .forEach(p -> trovati.putIfAbsent(p.getFileName().toString().toLowerCase(Locale.ROOT), p));
+            } catch (IOException | RuntimeException e) {
+                // Directory non leggibile: si passa alla successiva
+            }
+        }
+        return trovati;
+    }
+
+    // ---- Font analizzati (condivisi tra documenti) ----
+
+    /**
+     * Font TrueType analizzato una volta per JVM: tabella caratteri-glifi e larghezze
+     * sono immutabili; il font originale viene letto da PDFBox solo sotto lock.
+     */
+    private static final class FontCaricato {
+        final TrueTypeFont ttf;
+        final char[] glifiBmp = new char[Character.MAX_VALUE + 1];
+        final Map<Integer, Integer> glifiSupplementari = new HashMap<>();
+        final int[] larghezze;
+
+        private FontCaricato(TrueTypeFont ttf) throws IOException {
+            this.ttf = ttf;
+            OS2WindowsMetricsTable os2 = ttf.getOS2Windows();
+            if (os2 != null && (os2.getFsType() & 0x000F) == OS2WindowsMetricsTable.FSTYPE_RESTRICTED) {
+                throw new IOException("la licenza del font non ne consente l'incorporazione");
+            }
+            if (os2 != null && (os2.getFsType() & OS2WindowsMetricsTable.FSTYPE_NO_SUBSETTING) != 0) {
+                throw new IOException("la licenza del font non ne consente la riduzione ai glifi usati");
+            }
+
+            float scala = 1000f / ttf.getUnitsPerEm();
+            int numeroGlifi = ttf.getNumberOfGlyphs();
+            larghezze = new int[numeroGlifi];
+            CmapLookup cmap = ttf.getUnicodeCmapLookup();
+            for (int glifo = 0; glifo < numeroGlifi; glifo++) {
+                larghezze[glifo] = Math.round(ttf.getAdvanceWidth(glifo) * scala);
+                List<Integer> codici = cmap.getCharCodes(glifo);
+                if (codici != null && glifo > 0) {
+                    for (int codice : codici) {
+                        if (codice <= Character.MAX_VALUE) {
+                            glifiBmp[codice] = (char) glifo;
+                        } else {
+                            glifiSupplementari.put(codice, glifo);
+                        }
+                    }
+                }
+            }
+        }
+
+        static FontCaricato carica(Path percorso) throws IOException {
+            try (InputStream in = Files.newInputStream(percorso)) {
+                // Analisi da memoria: il file non resta aperto
+                return new FontCaricato(new TTFParser().parse(new ByteArrayInputStream(in.readAllBytes())));
+            }
+        }
+
+        int glifo(int codice) {
+            if (codice <= Character.MAX_VALUE) {
+                return glifiBmp[codice];
+            }
+            Integer glifo = glifiSupplementari.get(codice);
+            return glifo != null ? glifo : 0;
+        }
+
+        int larghezza(int glifo) {
+            return glifo < larghezze.length ? larghezze[glifo] : 0;
+        }
+    }
+}
+//EOF
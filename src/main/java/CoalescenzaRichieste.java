@@ -0,0 +1,258 @@
+// CoalescenzaRichieste.java
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accorpamento ("single flight") di richieste identiche concorrenti
+ *
+ * Quando più operatori della stessa sede chiedono lo stesso rapporto a pochi
+ * secondi di distanza, solo la prima richiesta (leader) esegue il rendering; le
+ * altre con la stessa impronta attendono e condividono lo stesso buffer. Un errore
+ * del leader viene propagato a tutte le richieste in attesa, e l'attesa è limitata
+ * da un tempo massimo oltre il quale la richiesta accodata fallisce.
+ *
+ * L'impronta comprende operatore, sede, revisione, dati dei kit, formato,
+ * impaginazione, linearizzazione, data e il contenuto (SHA-256) delle immagini di firma e logo.
+ * Del termine di consegna conta solo la presenza: un rapporto che potrebbe essere
+ * stato semplificato non viene condiviso con richieste senza tempo massimo.
+ *
+ * Con un {@link GovernatoreRisorse} solo il leader chiede il permesso di esecuzione:
+ * le richieste accorpate non impegnano memoria oltre al buffer condiviso.
+ */
+public final class CoalescenzaRichieste {
+
+    private final Duration attesaMassima;
+    private final GovernatoreRisorse governatore;
+    private final ConcurrentHashMap<String, Volo> inVolo = new ConcurrentHashMap<>();
+    private final AtomicLong rendering = new AtomicLong();
+    private final AtomicLong condivisi = new AtomicLong();
+
+    public CoalescenzaRichieste(Duration attesaMassima) {
+        this(attesaMassima, null);
+    }
+
+    public CoalescenzaRichieste(Duration attesaMassima, GovernatoreRisorse governatore) {
+        this.attesaMassima = attesaMassima;
+        this.governatore = governatore;
+    }
+
+    /**
+     * Restituisce il risultato della richiesta, generandolo oppure condividendo quello
+     * di una richiesta identica già in corso. Il risultato va chiuso dopo l'uso.
+     */
+    public Risultato esegui(RichiestaReport richiesta) throws IOException {
+        String impronta = impronta(richiesta);
+
+        Volo nuovo = new Volo();
+        Volo volo = inVolo.compute(impronta, (chiave, esistente) -> {
+            if (esistente != null) {
+                // La registrazione avviene sotto il lock della chiave: il leader non può
+                // rilasciare il buffer prima che questo riferimento sia conteggiato
+                esistente.riferimenti.incrementAndGet();
+                return esistente;
+            }
+            return nuovo;
+        });
+
+        if (volo == nuovo) {
+            return eseguiComeLeader(impronta, volo, richiesta);
+        }
+        return attendi(volo);
+    }
+
+    public long getRendering() {
+        return rendering.get();
+    }
+
+    public long getCondivisi() {
+        return condivisi.get();
+    }
+
+    public int getInVolo() {
+        return inVolo.size();
+    }
+
+    private Risultato eseguiComeLeader(String impronta, Volo volo, RichiestaReport richiesta) throws IOException {
+        ReportOutputBuffer buffer;
+        try {
+            buffer = renderizza(richiesta);
+        } catch (IOException | RuntimeException | Error e) {
+            inVolo.remove(impronta, volo);
+            volo.futuro.completeExceptionally(e);
+            throw e;
+        }
+        inVolo.remove(impronta, volo);
+        volo.futuro.complete(buffer);
+        return new Risultato(volo, buffer, false);
+    }
+
+    private ReportOutputBuffer renderizza(RichiestaReport richiesta) throws IOException {
+        if (governatore == null) {
+            rendering.incrementAndGet();
+            return richiesta.renderizza();
+        }
+        GovernatoreRisorse.Permesso permesso = governatore.acquisisci(GovernatoreRisorse.stimaMemoria(richiesta));
+        try {
+            rendering.incrementAndGet();
+            return richiesta.renderizza();
+        } finally {
+            permesso.close();
+        }
+    }
+
+    private Risultato attendi(Volo volo) throws IOException {
+        try {
+            ReportOutputBuffer buffer = volo.futuro.get(attesaMassima.toMillis(), TimeUnit.MILLISECONDS);
+            condivisi.incrementAndGet();
+            return new Risultato(volo, buffer, true);
+        } catch (ExecutionException e) {
+            volo.rilascia();
+            Throwable causa = e.getCause();
+            if (causa instanceof GovernatoreRisorse.Rifiuto) {
+                // Anche le richieste accorpate possono essere riproposte
+                throw new GovernatoreRisorse.Rifiuto(causa.getMessage());
+            }
+            if (causa instanceof IOException) {
+                throw new IOException(causa.getMessage(), causa);
+            }
+            throw new IOException("Generazione condivisa fallita: " + causa.getMessage(), causa);
+        } catch (TimeoutException e) {
+            volo.rilascia();
+            throw new IOException("Attesa del rapporto condiviso oltre " + attesaMassima.toMillis() + "ms", e);
+        } catch (InterruptedException e) {
+            volo.rilascia();
+            Thread.currentThread().interrupt();
+            throw new IOException("Attesa del rapporto condiviso interrotta", e);
+        } catch (CancellationException e) {
+            volo.rilascia();
+            throw new IOException("Generazione condivisa annullata", e);
+        }
+    }
+
+    static String impronta(RichiestaReport richiesta) throws IOException {
+        MessageDigest digest = sha256();
+        for (String campo : new String[]{richiesta.operatoreNome, richiesta.sede, richiesta.revisione,
+                richiesta.kitsData, richiesta.formato, String.valueOf(richiesta.impaginazione),
+                String.valueOf(richiesta.linearizzato),
+                String.valueOf(richiesta.data), String.valueOf(richiesta.termine != null)}) {
+            byte[] valore = campo != null ? campo.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            // Lunghezza come separatore, per non confondere campi adiacenti
+            digest.update((byte) (valore.length >>> 24));
+            digest.update((byte) (valore.length >>> 16));
+            digest.update((byte) (valore.length >>> 8));
+            digest.update((byte) valore.length);
+            digest.update(valore);
+        }
+        aggiungiImmagine(digest, richiesta.firmaPath);
+        aggiungiImmagine(digest, richiesta.logoPath);
+
+        StringBuilder esadecimale = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            esadecimale.append(String.format("%02x", b));
+        }
+        return esadecimale.toString();
+    }
+
+    private static void aggiungiImmagine(MessageDigest digest, String percorso) throws IOException {
+        digest.update((byte) 0);
+        if (percorso == null || percorso.isEmpty()) {
+            return;
+        }
+        Path file = Paths.get(percorso);
+        if (!Files.exists(file)) {
+            // Il generatore ignora le immagini mancanti: conta solo il percorso
+            digest.update(percorso.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        MessageDigest immagine = sha256();
+        byte[] blocco = new byte[16 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int letti;
+            while ((letti = in.read(blocco)) > 0) {
+                immagine.update(blocco, 0, letti);
+            }
+        }
+        digest.update(immagine.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+
+    private static final class Volo {
+        final CompletableFuture<ReportOutputBuffer> futuro = new CompletableFuture<>();
+        // Un riferimento per il leader più uno per ogni richiesta in attesa
+        final AtomicInteger riferimenti = new AtomicInteger(1);
+
+        void rilascia() {
+            if (riferimenti.decrementAndGet() == 0) {
+                ReportOutputBuffer buffer = futuro.getNow(null);
+                if (buffer != null) {
+                    buffer.rilascia();
+                }
+            }
+        }
+    }
+
+    /**
+     * Risultato di una richiesta, eventualmente condiviso con altre. Il buffer
+     * torna al pool quando tutte le richieste che lo condividono lo hanno chiuso.
+     */
+    public static final class Risultato implements AutoCloseable {
+        private final Volo volo;
+        private final ReportOutputBuffer buffer;
+        private final boolean condiviso;
+        private boolean chiuso;
+
+        private Risultato(Volo volo, ReportOutputBuffer buffer, boolean condiviso) {
+            this.volo = volo;
+            this.buffer = buffer;
+            this.condiviso = condiviso;
+        }
+
+        /**
+         * Indica se il risultato è stato generato da un'altra richiesta identica.
+         */
+        public boolean isCondiviso() {
+            return condiviso;
+        }
+
+        public ReportOutputBuffer getBuffer() {
+            return buffer;
+        }
+
+        public long trasferisci(WritableByteChannel destinazione) throws IOException {
+            return buffer.trasferisci(destinazione);
+        }
+
+        @Override
+        public void close() {
+            if (!chiuso) {
+                chiuso = true;
+                volo.rilascia();
+            }
+        }
+    }
+}
+//EOF
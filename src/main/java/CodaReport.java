@@ -0,0 +1,275 @@
+// CodaReport.java
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Coda di lavori su file con lease, pensata per un volume condiviso tra più pod
+ *
+ * Struttura della directory radice:
+ *   in-attesa/       richieste da eseguire, file {@code <id>~<tentativo>.job}
+ *   in-lavorazione/  richieste reclamate da un worker; la data di modifica del file
+ *                    è il battito del lease e viene rinnovata periodicamente
+ *   risultati/       output completati, file {@code <id>.<estensione>}
+ *   falliti/         richieste che hanno esaurito i tentativi, con il relativo errore
+ *
+ * Tutti i passaggi di stato sono rename atomici nella stessa directory radice:
+ * un solo worker riesce a reclamare un lavoro, e un lavoro il cui lease non viene
+ * rinnovato (worker terminato) torna in attesa con il tentativo incrementato.
+ * Funziona anche su una semplice directory locale.
+ */
+public final class CodaReport {
+
+    static final String IN_ATTESA = "in-attesa";
+    static final String IN_LAVORAZIONE = "in-lavorazione";
+    static final String RISULTATI = "risultati";
+    static final String FALLITI = "falliti";
+
+    private static final String ESTENSIONE_LAVORO = ".job";
+    private static final char SEPARATORE_TENTATIVO = '~';
+
+    private final Path radice;
+    private final Duration durataLease;
+    private final int maxTentativi;
+
+    public CodaReport(Path radice, Duration durataLease, int maxTentativi) throws IOException {
+        this.radice = radice;
+        this.durataLease = durataLease;
+        this.maxTentativi = maxTentativi;
+        Files.createDirectories(radice.resolve(IN_ATTESA));
+        Files.createDirectories(radice.resolve(IN_LAVORAZIONE));
+        Files.createDirectories(radice.resolve(RISULTATI));
+        Files.createDirectories(radice.resolve(FALLITI));
+    }
+
+    public Duration getDurataLease() {
+        return durataLease;
+    }
+
+    /**
+     * Inserisce una richiesta in coda e ne restituisce l'identificativo.
+     * Gli identificativi iniziano con il timestamp, per cui l'ordine di
+     * estrazione è approssimativamente FIFO.
+     */
+    public String accoda(RichiestaReport richiesta) throws IOException {
+        String id = String.format("%013d-%s", System.currentTimeMillis(),
+                UUID.randomUUID().toString().substring(0, 8));
+        Path temporaneo = radice.resolve(IN_ATTESA).resolve("." + id + ".tmp");
+        richiesta.salva(temporaneo);
+        sposta(temporaneo, radice.resolve(IN_ATTESA).resolve(nomeLavoro(id, 0)));
+        return id;
+    }
+
+    /**
+     * Reclama il primo lavoro disponibile, oppure restituisce {@code null} se la
+     * coda è vuota. In caso di concorrenza con altri worker solo uno ottiene il lavoro.
+     */
+    public Lease reclama() throws IOException {
+        for (Path candidato : elencaLavori(radice.resolve(IN_ATTESA))) {
+            Path destinazione = radice.resolve(IN_LAVORAZIONE).resolve(candidato.getFileName());
+            try {
+                // Il battito viene aggiornato prima dello spostamento, così il lease
+                // non risulta mai scaduto appena reclamato
+                Files.setLastModifiedTime(candidato, FileTime.fromMillis(System.currentTimeMillis()));
+                sposta(candidato, destinazione);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                // Reclamato da un altro worker
+                continue;
+            }
+
+            String nome = candidato.getFileName().toString();
+            Lease lease = new Lease(idDaNome(nome), tentativoDaNome(nome), destinazione);
+            try {
+                lease.richiesta = RichiestaReport.carica(destinazione);
+            } catch (IOException | RuntimeException e) {
+                lease.fallisci(e);
+                continue;
+            }
+            return lease;
+        }
+        return null;
+    }
+
+    /**
+     * Rimette in attesa i lavori il cui lease non è stato rinnovato entro la durata
+     * prevista. Restituisce il numero di lavori recuperati.
+     */
+    public int recuperaScaduti() throws IOException {
+        long limite = System.currentTimeMillis() - durataLease.toMillis();
+        int recuperati = 0;
+        for (Path lavoro : elencaLavori(radice.resolve(IN_LAVORAZIONE))) {
+            try {
+                if (Files.getLastModifiedTime(lavoro).toMillis() >= limite) {
+                    continue;
+                }
+                String nome = lavoro.getFileName().toString();
+                if (riaccoda(lavoro, idDaNome(nome), tentativoDaNome(nome),
+                        "Lease scaduto: worker non più attivo")) {
+                    recuperati++;
+                }
+            } catch (NoSuchFileException e) {
+                // Completato o recuperato da un altro processo nel frattempo
+            }
+        }
+        return recuperati;
+    }
+
+    public int lavoriInAttesa() throws IOException {
+        return elencaLavori(radice.resolve(IN_ATTESA)).size();
+    }
+
+    public int lavoriInLavorazione() throws IOException {
+        return elencaLavori(radice.resolve(IN_LAVORAZIONE)).size();
+    }
+
+    /**
+     * Percorso del risultato di un lavoro, oppure {@code null} se non è ancora disponibile.
+     */
+    public Path risultato(String id) throws IOException {
+        try (DirectoryStream<Path> risultati = Files.newDirectoryStream(radice.resolve(RISULTATI), id + ".*")) {
+            for (Path risultato : risultati) {
+                return risultato;
+            }
+        }
+        return null;
+    }
+
+    public boolean isFallito(String id) {
+        return Files.exists(radice.resolve(FALLITI).resolve(id + ESTENSIONE_LAVORO));
+    }
+
+    private boolean riaccoda(Path lavoro, String id, int tentativo, String motivo) throws IOException {
+        try {
+            if (tentativo + 1 < maxTentativi) {
+                sposta(lavoro, radice.resolve(IN_ATTESA).resolve(nomeLavoro(id, tentativo + 1)));
+            } else {
+                sposta(lavoro, radice.resolve(FALLITI).resolve(id + ESTENSIONE_LAVORO));
+                Files.write(radice.resolve(FALLITI).resolve(id + ".errore"),
+                        motivo.getBytes(StandardCharsets.UTF_8));
+            }
+            return true;
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private static List<Path> elencaLavori(Path directory) throws IOException {
+        List<Path> lavori = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ESTENSIONE_LAVORO)) {
+            for (Path lavoro : stream) {
+                lavori.add(lavoro);
+            }
+        }
+        Collections.sort(lavori);
+        return lavori;
+    }
+
+    private static void sposta(Path sorgente, Path destinazione) throws IOException {
+        try {
+            Files.move(sorgente, destinazione, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new IOException("Il volume della coda non supporta rename atomici: " + destinazione, e);
+        }
+    }
+
+    private static String nomeLavoro(String id, int tentativo) {
+        return id + SEPARATORE_TENTATIVO + tentativo + ESTENSIONE_LAVORO;
+    }
+
+    private static String idDaNome(String nome) {
+        return nome.substring(0, nome.indexOf(SEPARATORE_TENTATIVO));
+    }
+
+    private static int tentativoDaNome(String nome) {
+        int inizio = nome.indexOf(SEPARATORE_TENTATIVO) + 1;
+        return Integer.parseInt(nome.substring(inizio, nome.length() - ESTENSIONE_LAVORO.length()));
+    }
+
+    /**
+     * Lavoro reclamato da questo processo. Il lease va rinnovato con {@link #rinnova()}
+     * più spesso della durata configurata, e chiuso con {@link #completa} o {@link #fallisci}.
+     */
+    public final class Lease {
+        public final String id;
+        public final int tentativo;
+        public RichiestaReport richiesta;
+        private final Path file;
+
+        private Lease(String id, int tentativo, Path file) {
+            this.id = id;
+            this.tentativo = tentativo;
+            this.file = file;
+        }
+
+        /**
+         * Aggiorna il battito del lease. Restituisce {@code false} se il lavoro non
+         * appartiene più a questo worker (lease scaduto e lavoro rimesso in coda).
+         */
+        public boolean rinnova() {
+            try {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Pubblica il risultato e chiude il lavoro. Se nel frattempo il lease è stato
+         * perso il risultato viene scartato e il metodo restituisce {@code false}.
+         */
+        public boolean completa(ReportOutputBuffer contenuto, String estensione) throws IOException {
+            if (!rinnova()) {
+                return false;
+            }
+            Path cartellaRisultati = radice.resolve(RISULTATI);
+            Path temporaneo = cartellaRisultati.resolve("." + id + "." + estensione + ".tmp");
+            try (FileChannel canale = FileChannel.open(temporaneo, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                contenuto.trasferisci(canale);
+                canale.force(true);
+            }
+            Files.move(temporaneo, cartellaRisultati.resolve(id + "." + estensione),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(file);
+            return true;
+        }
+
+        /**
+         * Rimette il lavoro in attesa senza consumare un tentativo, ad esempio quando
+         * questo worker non ha risorse sufficienti: un'altra replica potrà reclamarlo.
+         */
+        public void restituisci() throws IOException {
+            try {
+                sposta(file, radice.resolve(IN_ATTESA).resolve(nomeLavoro(id, tentativo)));
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                // Lease già scaduto e lavoro recuperato da un altro worker
+            }
+        }
+
+        /**
+         * Registra un errore: il lavoro torna in attesa finché restano tentativi,
+         * poi viene spostato tra i falliti insieme al messaggio di errore.
+         */
+        public void fallisci(Exception errore) throws IOException {
+            String motivo = errore.getClass().getSimpleName() + ": " + errore.getMessage();
+            riaccoda(file, id, tentativo, motivo);
+        }
+    }
+}
+//EOF
@@ -0,0 +1,63 @@
+// ConteggioVettoriale.java
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Conteggio SIMD per {@link AggregatoreInventario}
+ *
+ * Richiede il modulo jdk.incubator.vector a runtime: viene istanziata per
+ * riflessione solo se il modulo è presente, altrimenti l'aggregatore usa
+ * l'implementazione scalare.
+ */
+final class ConteggioVettoriale implements AggregatoreInventario.Conteggio {
+
+    private static final VectorSpecies<Integer> SPECIE = IntVector.SPECIES_PREFERRED;
+
+    private final AggregatoreInventario.Conteggio scalare = new AggregatoreInventario.ConteggioScalare();
+
+    @Override
+    public void conta(AggregatoreInventario.Colonne colonne, int da, int a, int[] risultato, int base) {
+        int completi = 0, sottoSoglia = 0, eccessivi = 0;
+        int nonPositivi = 0, entro30 = 0, entro90 = 0, oltre90 = 0, senzaData = 0;
+
+        int i = da;
+        int limite = da + SPECIE.loopBound(a - da);
+        for (; i < limite; i += SPECIE.length()) {
+            IntVector quantita = IntVector.fromArray(SPECIE, colonne.quantita, i);
+            IntVector massimo = IntVector.fromArray(SPECIE, colonne.massimo, i);
+            IntVector soglia = IntVector.fromArray(SPECIE, colonne.soglia, i);
+            IntVector giorni = IntVector.fromArray(SPECIE, colonne.giorni, i);
+
+            completi += quantita.compare(VectorOperators.GE, massimo).trueCount();
+            sottoSoglia += quantita.compare(VectorOperators.LT, soglia).trueCount();
+            eccessivi += quantita.compare(VectorOperators.GT, massimo).trueCount();
+
+            // SENZA_SCADENZA è Integer.MIN_VALUE: rientra tra i non positivi e viene sottratto dopo
+            senzaData += giorni.compare(VectorOperators.EQ, AggregatoreInventario.SENZA_SCADENZA).trueCount();
+            nonPositivi += giorni.compare(VectorOperators.LE, 0).trueCount();
+            VectorMask<Integer> oltre30 = giorni.compare(VectorOperators.GT, 30);
+            VectorMask<Integer> oltre90Mask = giorni.compare(VectorOperators.GT, 90);
+            entro30 += giorni.compare(VectorOperators.GT, 0).andNot(oltre30).trueCount();
+            entro90 += oltre30.andNot(oltre90Mask).trueCount();
+            oltre90 += oltre90Mask.trueCount();
+        }
+
+        risultato[base + AggregatoreInventario.COMPLETI] += completi;
+        risultato[base + AggregatoreInventario.SOTTO_SOGLIA] += sottoSoglia;
+        risultato[base + AggregatoreInventario.ECCESSIVI] += eccessivi;
+        risultato[base + AggregatoreInventario.SCADUTI] += nonPositivi - senzaData;
+        risultato[base + AggregatoreInventario.ENTRO_30] += entro30;
+        risultato[base + AggregatoreInventario.ENTRO_90] += entro90;
+        risultato[base + AggregatoreInventario.OLTRE_90] += oltre90;
+        risultato[base + AggregatoreInventario.SENZA_DATA] += senzaData;
+
+        // Coda dell'intervallo non multipla della larghezza vettoriale
+        if (i < a) {
+            scalare.conta(colonne, i, a, risultato, base);
+        }
+    }
+}
+//EOF
@@ -0,0 +1,267 @@
+// DegradazioneRendering.java
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generazione entro un tempo massimo con degradazione progressiva
+ *
+ * Prima del rendering si stima il costo della generazione dal numero di kit e di
+ * articoli e dalla dimensione delle immagini. Se la stima supera il tempo rimasto
+ * fino al termine richiesto si applicano, nell'ordine, i livelli di {@link Livello}
+ * finché la stima rientra (o finché non restano livelli). I coefficienti sono
+ * misurati sul generatore a caldo e vengono corretti con una media mobile del
+ * rapporto tra tempo effettivo e stimato, come la dimensione iniziale di
+ * {@link ReportOutputBuffer}.
+ */
+public final class DegradazioneRendering {
+
+    /**
+     * Livelli di degradazione, nell'ordine in cui vengono applicati.
+     */
+    public enum Livello {
+        IMMAGINI_RIDOTTE("immagini a risoluzione ridotta"),
+        KIT_RIASSUNTI("kit conformi riassunti"),
+        SENZA_OMBREGGIATURA("righe senza colore di stato"),
+        SENZA_IMMAGINI("immagini omesse");
+
+        public final String descrizione;
+
+        Livello(String descrizione) {
+            this.descrizione = descrizione;
+        }
+    }
+
+    // Costi misurati a caldo (ms)
+    private static final double COSTO_BASE_MS = 15;
+    private static final double COSTO_KIT_MS = 0.1;
+    private static final double COSTO_ARTICOLO_MS = 0.04;
+    private static final double COSTO_KB_IMMAGINE_MS = 0.12;
+    // Prima generazione nella JVM: caricamento classi PDFBox e metriche dei font
+    private static final double COSTO_AVVIO_MS = 800;
+
+    // Quota del costo che ciascun livello elimina
+    private static final double RISPARMIO_IMMAGINI_RIDOTTE = 0.6;
+    private static final double RISPARMIO_OMBREGGIATURA = 0.25;
+
+    // Margine tenuto libero per consegna e imprevisti
+    private static final double QUOTA_BUDGET_UTILE = 0.8;
+
+    // Fattore di correzione (bit del double) aggiornato dai thread del worker in concorrenza
+    private static final AtomicLong fattoreCorrezione = new AtomicLong(Double.doubleToLongBits(1.0));
+    private static final AtomicBoolean avviato = new AtomicBoolean();
+
+    private static final AtomicLong generazioniConTermine = new AtomicLong();
+    private static final AtomicLong terminiSuperati = new AtomicLong();
+    private static final Map<Livello, AtomicLong> applicazioni = new EnumMap<>(Livello.class);
+
+    static {
+        for (Livello livello : Livello.values()) {
+            applicazioni.put(livello, new AtomicLong());
+        }
+    }
+
+    private DegradazioneRendering() {
+    }
+
+    /**
+     * Stima a priori del lavoro di una generazione.
+     */
+    public static final class Stima {
+        public final int kit;
+        public final int articoli;
+        /** Articoli di kit interamente conformi, che {@link Livello#KIT_RIASSUNTI} non disegna */
+        public final int articoliRiassumibili;
+        public final int kitRiassumibili;
+        public final long byteImmagini;
+
+        Stima(int kit, int articoli, int kitRiassumibili, int articoliRiassumibili, long byteImmagini) {
+            this.kit = kit;
+            this.articoli = articoli;
+            this.kitRiassumibili = kitRiassumibili;
+            this.articoliRiassumibili = articoliRiassumibili;
+            this.byteImmagini = byteImmagini;
+        }
+
+        /**
+         * Tempo stimato in millisecondi con i livelli di degradazione indicati.
+         */
+        public double millisecondi(Set<Livello> livelli) {
+            return costo(livelli) * fattoreCorrezione() + (avviato.get() ? 0 : COSTO_AVVIO_MS);
+        }
+
+        // Costo a caldo secondo i coefficienti misurati, senza correzione
+        double costo(Set<Livello> livelli) {
+            double costoArticoli = COSTO_ARTICOLO_MS * articoli;
+            double costoKit = COSTO_KIT_MS * kit;
+            if (livelli.contains(Livello.KIT_RIASSUNTI)) {
+                costoArticoli -= COSTO_ARTICOLO_MS * articoliRiassumibili;
+            }
+            if (livelli.contains(Livello.SENZA_OMBREGGIATURA)) {
+                costoArticoli *= 1 - RISPARMIO_OMBREGGIATURA;
+            }
+
+            double costoImmagini = COSTO_KB_IMMAGINE_MS * byteImmagini / 1024.0;
+            if (livelli.contains(Livello.SENZA_IMMAGINI)) {
+                costoImmagini = 0;
+            } else if (livelli.contains(Livello.IMMAGINI_RIDOTTE)) {
+                costoImmagini *= 1 - RISPARMIO_IMMAGINI_RIDOTTE;
+            }
+
+            return COSTO_BASE_MS + costoKit + costoArticoli + costoImmagini;
+        }
+
+        boolean haEffetto(Livello livello) {
+            switch (livello) {
+                case IMMAGINI_RIDOTTE:
+                case SENZA_IMMAGINI:
+                    return byteImmagini > 0;
+                case KIT_RIASSUNTI:
+                    return kitRiassumibili > 0;
+                default:
+                    return articoli > 0;
+            }
+        }
+    }
+
+    public static Stima stima(List<ReportGenerator.Sezione> cassette, Path logo, Path firma) {
+        int articoli = 0;
+        int kitRiassumibili = 0;
+        int articoliRiassumibili = 0;
+        for (ReportGenerator.Sezione sezione : cassette) {
+            articoli += sezione.articoli.size();
+            if (ReportGenerator.isKitConforme(sezione)) {
+                kitRiassumibili++;
+                articoliRiassumibili += sezione.articoli.size();
+            }
+        }
+        return new Stima(cassette.size(), articoli, kitRiassumibili, articoliRiassumibili,
+                dimensione(logo) + dimensione(firma));
+    }
+
+    /**
+     * Sceglie i livelli di degradazione necessari per chiudere entro il termine.
+     * Senza termine non viene applicata alcuna degradazione.
+     */
+    public static EnumSet<Livello> pianifica(Stima stima, Instant termine) {
+        EnumSet<Livello> livelli = EnumSet.noneOf(Livello.class);
+        if (termine == null) {
+            return livelli;
+        }
+        double budget = Duration.between(Instant.now(), termine).toMillis() * QUOTA_BUDGET_UTILE;
+        for (Livello livello : Livello.values()) {
+            if (stima.millisecondi(livelli) <= budget) {
+                break;
+            }
+            if (stima.haEffetto(livello)) {
+                livelli.add(livello);
+            }
+        }
+        // Le immagini omesse rendono superflua la riduzione
+        if (livelli.contains(Livello.SENZA_IMMAGINI)) {
+            livelli.remove(Livello.IMMAGINI_RIDOTTE);
+        }
+        return livelli;
+    }
+
+    /**
+     * Registra l'esito di una generazione: aggiorna le metriche e, dal tempo
+     * effettivo, il fattore di correzione delle stime.
+     */
+    public static void registra(Stima stima, Set<Livello> livelli, Instant termine, long millisecondiEffettivi) {
+        // La prima generazione della JVM comprende l'avvio e non entra nella correzione
+        if (avviato.getAndSet(true)) {
+            double stimato = stima.costo(livelli);
+            if (stimato > 0) {
+                // Limita l'effetto di singole misure anomale (GC, contesa di CPU)
+                double rapporto = Math.max(0.25, Math.min(4.0, millisecondiEffettivi / stimato));
+                fattoreCorrezione.updateAndGet(bit ->
+                        Double.doubleToLongBits((Double.longBitsToDouble(bit) * 3 + rapporto) / 4));
+            }
+        }
+
+        if (termine != null) {
+            generazioniConTermine.incrementAndGet();
+            for (Livello livello : livelli) {
+                applicazioni.get(livello).incrementAndGet();
+            }
+            if (Instant.now().isAfter(termine)) {
+                terminiSuperati.incrementAndGet();
+            }
+        }
+    }
+
+    private static double fattoreCorrezione() {
+        return Double.longBitsToDouble(fattoreCorrezione.get());
+    }
+
+    public static long getGenerazioniConTermine() {
+        return generazioniConTermine.get();
+    }
+
+    public static long getTerminiSuperati() {
+        return terminiSuperati.get();
+    }
+
+    /**
+     * Numero di generazioni in cui ciascun livello è stato applicato.
+     */
+    public static Map<Livello, Long> getApplicazioni() {
+        Map<Livello, Long> conteggi = new EnumMap<>(Livello.class);
+        for (Map.Entry<Livello, AtomicLong> voce : applicazioni.entrySet()) {
+            conteggi.put(voce.getKey(), voce.getValue().get());
+        }
+        return conteggi;
+    }
+
+    /**
+     * Metriche in formato di esposizione testuale Prometheus: generazioni con
+     * termine, termini superati e applicazioni di ciascun livello (etichetta "livello").
+     */
+    public static String metriche() {
+        StringBuilder testo = new StringBuilder();
+        GovernatoreRisorse.metrica(testo, "report_generazioni_con_termine_totale", "counter",
+                "Generazioni con tempo massimo", generazioniConTermine.get());
+        GovernatoreRisorse.metrica(testo, "report_termini_superati_totale", "counter",
+                "Generazioni concluse oltre il tempo massimo", terminiSuperati.get());
+        String nome = "report_degradazioni_totale";
+        testo.append("# HELP ").append(nome).append(" Generazioni in cui il livello di degradazione è stato applicato\n")
+             .append("# TYPE ").append(nome).append(" counter\n");
+        for (Map.Entry<Livello, AtomicLong> voce : applicazioni.entrySet()) {
+            testo.append(nome).append("{livello=\"").append(voce.getKey().name().toLowerCase(Locale.ROOT))
+                 .append("\"} ").append(voce.getValue().get()).append('\n');
+        }
+        return testo.toString();
+    }
+
+    public static String descrivi(Set<Livello> livelli) {
+        StringBuilder testo = new StringBuilder();
+        for (Livello livello : livelli) {
+            if (testo.length() > 0) {
+                testo.append(", ");
+            }
+            testo.append(livello.descrizione);
+        }
+        return testo.toString();
+    }
+
+    private static long dimensione(Path file) {
+        try {
+            return file != null && Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
+//EOF
@@ -0,0 +1,388 @@
+// GovernatoreRisorse.java
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Ammissione dei rendering entro i limiti di CPU e memoria del contenitore
+ *
+ * I limiti vengono letti dal cgroup del processo (v2: {@code cpu.max} e
+ * {@code memory.max}; v1: {@code cpu.cfs_quota_us}/{@code cpu.cfs_period_us} e
+ * {@code memory.limit_in_bytes}). Il budget di memoria è una frazione del minore
+ * tra il limite del contenitore e l'heap massimo della JVM; i rendering contemporanei
+ * sono al massimo quanti i core concessi dalla quota.
+ *
+ * Ogni lavoro dichiara una stima della memoria di picco ({@link #stimaMemoria}) e
+ * viene ammesso se rientra nel budget, altrimenti attende in una coda FIFO limitata.
+ * Se la coda è piena o l'attesa supera il massimo, il lavoro viene rifiutato con
+ * {@link Rifiuto} e può essere riproposto a un'altra replica. Un lavoro più grande
+ * dell'intero budget viene eseguito da solo, per non restare bloccato per sempre.
+ * Profondità della coda e rifiuti sono esposti in formato Prometheus per l'HPA.
+ */
+public final class GovernatoreRisorse {
+
+    static final double FRAZIONE_PREDEFINITA = 0.7;
+    static final int CODA_PREDEFINITA = 16;
+    static final Duration ATTESA_PREDEFINITA = Duration.ofSeconds(30);
+
+    // Memoria di picco misurata con heap minimo (SerialGC), arrotondata per eccesso
+    private static final long MEMORIA_BASE = 2L * 1024 * 1024;
+    private static final long MEMORIA_KIT = 1024;
+    private static final long MEMORIA_ARTICOLO = 2 * 1024;
+    // Raster decodificato (4 byte per pixel) più la copia usata per la compressione
+    private static final long MEMORIA_PIXEL = 8;
+    // JSON, CSV e HTML non costruiscono il modello del documento PDF
+    private static final double QUOTA_FORMATI_DATI = 0.3;
+
+    // Oltre questa soglia il limite di memoria v1 significa "nessun limite"
+    private static final long MEMORIA_ILLIMITATA_V1 = 1L << 60;
+
+    private final Limiti limiti;
+    private final long budget;
+    private final int concorrenzaMassima;
+    private final int codaMassima;
+    private final Duration attesaMassima;
+
+    private final ArrayDeque<Permesso> inAttesa = new ArrayDeque<>();
+    private long memoriaImpegnata;
+    private int inEsecuzione;
+    private long ammessi;
+    private long rifiutati;
+
+    public GovernatoreRisorse(Limiti limiti, double frazioneMemoria, int codaMassima, Duration attesaMassima) {
+        if (frazioneMemoria <= 0 || frazioneMemoria > 1) {
+            throw new IllegalArgumentException("Frazione di memoria non valida: " + frazioneMemoria);
+        }
+        this.limiti = limiti;
+        this.budget = (long) (limiti.memoriaUtilizzabile() * frazioneMemoria);
+        this.concorrenzaMassima = Math.max(1, (int) Math.ceil(limiti.cpu));
+        this.codaMassima = Math.max(0, codaMassima);
+        this.attesaMassima = attesaMassima;
+    }
+
+    /**
+     * Limiti di risorse del processo.
+     */
+    public static final class Limiti {
+        /** Core disponibili (frazionari con una quota CFS) */
+        public final double cpu;
+        /** Limite di memoria del contenitore in byte, -1 se assente */
+        public final long memoria;
+        /** Heap massimo della JVM */
+        public final long heapMassimo;
+        /** Provenienza dei limiti: "cgroup v2", "cgroup v1" o "nessun cgroup" */
+        public final String origine;
+
+        Limiti(double cpu, long memoria, long heapMassimo, String origine) {
+            this.cpu = cpu;
+            this.memoria = memoria;
+            this.heapMassimo = heapMassimo;
+            this.origine = origine;
+        }
+
+        /**
+         * I rendering allocano sull'heap: conta il minore tra heap e limite del contenitore.
+         */
+        public long memoriaUtilizzabile() {
+            return memoria > 0 ? Math.min(memoria, heapMassimo) : heapMassimo;
+        }
+
+        public static Limiti leggi() {
+            return leggi(Paths.get("/sys/fs/cgroup"), Paths.get("/proc/self/cgroup"));
+        }
+
+        static Limiti leggi(Path radice, Path cgroupProcesso) {
+            int processori = Runtime.getRuntime().availableProcessors();
+            long heap = Runtime.getRuntime().maxMemory();
+            List<String> righe = leggiRighe(cgroupProcesso);
+
+            if (Files.exists(radice.resolve("cgroup.controllers"))) {
+                // v2: gerarchia unica, riga "0::<percorso>"
+                List<Path> candidati = candidati(radice, righe, "");
+                double cpu = processori;
+                String quota = primoValore(candidati, "cpu.max");
+                if (quota != null) {
+                    String[] parti = quota.trim().split("\\s+");
+                    if (!parti[0].equals("max") && parti.length == 2) {
+                        cpu = Math.min(processori, Double.parseDouble(parti[0]) / Double.parseDouble(parti[1]));
+                    }
+                }
+                long memoria = -1;
+                String limite = primoValore(candidati, "memory.max");
+                if (limite != null && !limite.trim().equals("max")) {
+                    memoria = Long.parseLong(limite.trim());
+                }
+                return new Limiti(cpu, memoria, heap, "cgroup v2");
+            }
+
+            // v1: un controller per gerarchia, righe "<n>:cpu,cpuacct:<percorso>"
+            List<Path> candidatiCpu = new ArrayList<>();
+            for (String controller : new String[]{"cpu", "cpu,cpuacct", "cpuacct,cpu"}) {
+                candidatiCpu.addAll(candidati(radice.resolve(controller), righe, "cpu"));
+            }
+            List<Path> candidatiMemoria = candidati(radice.resolve("memory"), righe, "memory");
+            String quota = primoValore(candidatiCpu, "cpu.cfs_quota_us");
+            String periodo = primoValore(candidatiCpu, "cpu.cfs_period_us");
+            String limite = primoValore(candidatiMemoria, "memory.limit_in_bytes");
+            if (quota == null && limite == null) {
+                return new Limiti(processori, -1, heap, "nessun cgroup");
+            }
+            double cpu = processori;
+            if (quota != null && periodo != null && Long.parseLong(quota.trim()) > 0) {
+                cpu = Math.min(processori, Double.parseDouble(quota.trim()) / Double.parseDouble(periodo.trim()));
+            }
+            long memoria = -1;
+            if (limite != null && Long.parseLong(limite.trim()) < MEMORIA_ILLIMITATA_V1) {
+                memoria = Long.parseLong(limite.trim());
+            }
+            return new Limiti(cpu, memoria, heap, "cgroup v1");
+        }
+
+        // Directory del cgroup del processo sotto la radice montata, poi la radice stessa
+        // (nei contenitori con namespace cgroup la radice è già il cgroup del processo)
+        private static List<Path> candidati(Path radice, List<String> righe, String controller) {
+            List<Path> candidati = new ArrayList<>();
+            for (String riga : righe) {
+                String[] campi = riga.split(":", 3);
+                if (campi.length < 3) {
+                    continue;
+                }
+                boolean corrisponde = controller.isEmpty()
+                        ? campi[0].equals("0") && campi[1].isEmpty()
+                        : List.of(campi[1].split(",")).contains(controller);
+                if (corrisponde && campi[2].length() > 1) {
+                    candidati.add(radice.resolve(campi[2].substring(1)));
+                }
+            }
+            candidati.add(radice);
+            return candidati;
+        }
+
+        private static String primoValore(List<Path> directory, String file) {
+            for (Path candidato : directory) {
+                Path percorso = candidato.resolve(file);
+                if (Files.isReadable(percorso)) {
+                    List<String> righe = leggiRighe(percorso);
+                    if (!righe.isEmpty()) {
+                        return righe.get(0);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static List<String> leggiRighe(Path file) {
+            try {
+                return Files.readAllLines(file, StandardCharsets.US_ASCII);
+            } catch (IOException | RuntimeException e) {
+                return new ArrayList<>();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %.2f CPU, memoria %s, heap %d MB", origine, cpu,
+                    memoria > 0 ? (memoria / (1024 * 1024)) + " MB" : "illimitata", heapMassimo / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Stima della memoria di picco di un rendering, dal numero di kit e di articoli
+     * e dalla dimensione in pixel delle immagini.
+     */
+    public static long stimaMemoria(RichiestaReport richiesta) {
+        int kit = 0;
+        int articoli = 0;
+        for (ReportGenerator.Sezione sezione : richiesta.cassette()) {
+            kit++;
+            articoli += sezione.articoli.size();
+        }
+        long stima = MEMORIA_BASE + kit * MEMORIA_KIT + articoli * MEMORIA_ARTICOLO;
+        if (!richiesta.isPdf()) {
+            return (long) (stima * QUOTA_FORMATI_DATI);
+        }
+        return stima + memoriaImmagine(richiesta.firmaPath) + memoriaImmagine(richiesta.logoPath);
+    }
+
+    private static long memoriaImmagine(String percorso) {
+        if (percorso == null || percorso.isEmpty()) {
+            return 0;
+        }
+        Path file = Paths.get(percorso);
+        if (!Files.isRegularFile(file)) {
+            return 0;
+        }
+        // Solo l'intestazione: le dimensioni si leggono senza decodificare l'immagine
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> lettori = in != null ? ImageIO.getImageReaders(in) : null;
+            if (lettori != null && lettori.hasNext()) {
+                ImageReader lettore = lettori.next();
+                try {
+                    lettore.setInput(in, true, true);
+                    return (long) lettore.getWidth(0) * lettore.getHeight(0) * MEMORIA_PIXEL + Files.size(file);
+                } finally {
+                    lettore.dispose();
+                }
+            }
+            return Files.size(file) * 2;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Rifiuto di ammissione: coda piena o attesa oltre il massimo. Il lavoro non è
+     * fallito e può essere riproposto.
+     */
+    public static final class Rifiuto extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Rifiuto(String messaggio) {
+            super(messaggio);
+        }
+    }
+
+    /**
+     * Attende che il lavoro possa essere eseguito. Il permesso restituito va chiuso
+     * al termine del rendering.
+     */
+    public synchronized Permesso acquisisci(long stima) throws IOException {
+        Permesso permesso = new Permesso(stima);
+        if (inAttesa.isEmpty() && puoEntrare(stima)) {
+            return ammetti(permesso);
+        }
+        if (inAttesa.size() >= codaMassima) {
+            rifiutati++;
+            throw new Rifiuto("Risorse esaurite: " + inAttesa.size() + " lavori già in attesa");
+        }
+
+        inAttesa.addLast(permesso);
+        long scadenza = System.nanoTime() + attesaMassima.toNanos();
+        try {
+            // FIFO: un lavoro piccolo non scavalca uno grande già in attesa
+            while (inAttesa.peekFirst() != permesso || !puoEntrare(stima)) {
+                long rimanente = scadenza - System.nanoTime();
+                if (rimanente <= 0) {
+                    rifiutati++;
+                    throw new Rifiuto("Risorse esaurite: attesa oltre " + attesaMassima.toMillis() + "ms");
+                }
+                wait(Math.max(1, rimanente / 1_000_000));
+            }
+            inAttesa.removeFirst();
+            return ammetti(permesso);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Attesa delle risorse interrotta", e);
+        } finally {
+            if (inAttesa.remove(permesso)) {
+                // Il lavoro successivo potrebbe ora essere in testa
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean puoEntrare(long stima) {
+        return inEsecuzione < concorrenzaMassima && (memoriaImpegnata + stima <= budget || inEsecuzione == 0);
+    }
+
+    private Permesso ammetti(Permesso permesso) {
+        inEsecuzione++;
+        memoriaImpegnata += permesso.stima;
+        ammessi++;
+        // Altri lavori in coda potrebbero entrare insieme a questo
+        notifyAll();
+        return permesso;
+    }
+
+    private synchronized void rilascia(Permesso permesso) {
+        inEsecuzione--;
+        memoriaImpegnata -= permesso.stima;
+        notifyAll();
+    }
+
+    /**
+     * Permesso di esecuzione: la memoria stimata resta impegnata fino alla chiusura.
+     */
+    public final class Permesso implements AutoCloseable {
+        final long stima;
+        private boolean chiuso;
+
+        private Permesso(long stima) {
+            this.stima = stima;
+        }
+
+        @Override
+        public void close() {
+            if (!chiuso) {
+                chiuso = true;
+                rilascia(this);
+            }
+        }
+    }
+
+    public Limiti getLimiti() {
+        return limiti;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public int getConcorrenzaMassima() {
+        return concorrenzaMassima;
+    }
+
+    public synchronized int getInAttesa() {
+        return inAttesa.size();
+    }
+
+    public synchronized int getInEsecuzione() {
+        return inEsecuzione;
+    }
+
+    public synchronized long getMemoriaImpegnata() {
+        return memoriaImpegnata;
+    }
+
+    public synchronized long getAmmessi() {
+        return ammessi;
+    }
+
+    public synchronized long getRifiutati() {
+        return rifiutati;
+    }
+
+    /**
+     * Metriche in formato di esposizione testuale Prometheus.
+     */
+    public synchronized String metriche() {
+        StringBuilder testo = new StringBuilder();
+        metrica(testo, "report_governatore_in_attesa", "gauge", "Lavori in attesa di risorse", inAttesa.size());
+        metrica(testo, "report_governatore_in_esecuzione", "gauge", "Rendering in corso", inEsecuzione);
+        metrica(testo, "report_governatore_rifiutati_totale", "counter", "Lavori rifiutati per risorse esaurite", rifiutati);
+        metrica(testo, "report_governatore_ammessi_totale", "counter", "Lavori ammessi al rendering", ammessi);
+        metrica(testo, "report_governatore_memoria_impegnata_byte", "gauge", "Memoria stimata dei rendering in corso", memoriaImpegnata);
+        metrica(testo, "report_governatore_memoria_budget_byte", "gauge", "Budget di memoria per i rendering", budget);
+        metrica(testo, "report_governatore_concorrenza_massima", "gauge", "Rendering contemporanei consentiti", concorrenzaMassima);
+        return testo.toString();
+    }
+
+    static void metrica(StringBuilder testo, String nome, String tipo, String descrizione, long valore) {
+        testo.append("# HELP ").append(nome).append(' ').append(descrizione).append('\n')
+             .append("# TYPE ").append(nome).append(' ').append(tipo).append('\n')
+             .append(nome).append(' ').append(valore).append('\n');
+    }
+}
+//EOF
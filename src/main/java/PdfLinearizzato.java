@@ -0,0 +1,754 @@
+// PdfLinearizzato.java
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scrittura di PDF linearizzati ("fast web view", ISO 32000-1 allegato F)
+ *
+ * PDFBox 2.0 salva gli oggetti nell'ordine di creazione con la tabella xref in
+ * fondo, quindi un visualizzatore deve scaricare l'intero file prima di mostrare
+ * la prima pagina. Qui gli oggetti del documento in memoria vengono riordinati e
+ * scritti nella disposizione linearizzata:
+ *
+ *   intestazione, dizionario di linearizzazione, xref e trailer della prima pagina,
+ *   catalogo, hint stream, pagina 1 con tutti i suoi oggetti, pagine successive con
+ *   i propri oggetti, oggetti condivisi, altri oggetti, xref principale e trailer.
+ *
+ * Le dimensioni di ogni oggetto sono note prima della scrittura (i flussi vengono
+ * copiati codificati, senza ricompressione), per cui tutti gli offset si calcolano
+ * in anticipo e il file viene scritto in un solo passaggio. Come richiesto dallo
+ * standard, gli offset nelle tabelle di hint ignorano la lunghezza dell'hint stream.
+ */
+public final class PdfLinearizzato {
+
+    private static final byte[] FINE_RIGA = {'\n'};
+    // Spazio riservato a dizionario di linearizzazione e trailer della prima pagina,
+    // i cui valori dipendono dagli offset calcolati dopo
+    private static final int CIFRE_RISERVATE = 10;
+
+    private PdfLinearizzato() {
+    }
+
+    /**
+     * Scrive il documento linearizzato. Lo stream non viene chiuso.
+     */
+    public static void scrivi(PDDocument documento, OutputStream out) throws IOException {
+        new Impaginazione(documento).scrivi(out);
+    }
+
+    /**
+     * Oggetto indiretto con la sua rappresentazione serializzata.
+     */
+    private static final class Oggetto {
+        final COSBase base;
+        int numero;
+        byte[] testa;            // "N 0 obj" e dizionario (fino a "stream" compreso per i flussi)
+        long lunghezzaFlusso = -1;
+        byte[] coda;             // "endstream"/"endobj"
+        long offset;             // offset reale nel file
+        long offsetSenzaHint;    // offset come se l'hint stream non ci fosse
+
+        Oggetto(COSBase base) {
+            this.base = base;
+        }
+
+        long dimensione() {
+            return testa.length + Math.max(0, lunghezzaFlusso) + coda.length;
+        }
+    }
+
+    private static final class Impaginazione {
+        private final PDDocument documento;
+        private final COSDictionary trailer;
+        private final COSDictionary catalogo;
+        private final List<COSDictionary> pagine = new ArrayList<>();
+        private final Set<COSBase> insiemePagine = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Map<COSBase, Oggetto> oggetti = new IdentityHashMap<>();
+        private final Set<COSBase> nodiAlbero = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        // Parti dell'allegato F (numerazione dello standard)
+        private final List<Oggetto> parte4 = new ArrayList<>();
+        private final List<Oggetto> parte6 = new ArrayList<>();
+        private final List<List<Oggetto>> parte7 = new ArrayList<>();
+        private final List<Oggetto> parte8 = new ArrayList<>();
+        private final List<Oggetto> parte9 = new ArrayList<>();
+
+        // Oggetti usati da ciascuna pagina e numero di pagine che usano ciascun oggetto
+        private final List<Set<COSBase>> oggettiPagina = new ArrayList<>();
+        private final Map<COSBase, Integer> utilizzi = new IdentityHashMap<>();
+
+        Impaginazione(PDDocument documento) {
+            this.documento = documento;
+            this.trailer = documento.getDocument().getTrailer();
+            this.catalogo = documento.getDocumentCatalog().getCOSObject();
+            for (PDPage pagina : documento.getPages()) {
+                pagine.add(pagina.getCOSObject());
+            }
+            insiemePagine.addAll(pagine);
+        }
+
+        void scrivi(OutputStream out) throws IOException {
+            if (pagine.isEmpty()) {
+                throw new IOException("Documento senza pagine: linearizzazione non applicabile");
+            }
+            classifica();
+            int primoNumeroPrimaPagina = numera();
+            Oggetto hint = new Oggetto(null);
+            hint.numero = primoNumeroPrimaPagina + 1 + parte4.size() + parte6.size();
+            int dimensioneXref = hint.numero + 1;
+            for (Oggetto oggetto : oggetti.values()) {
+                serializza(oggetto);
+            }
+
+            byte[] intestazione = ("%PDF-" + String.format(Locale.ROOT, "%.1f", documento.getVersion())
+                    + "\n%âãÏÓ\n").getBytes(StandardCharsets.ISO_8859_1);
+            byte[] id = identificativo();
+
+            // Lunghezze riservate per le parti scritte a posteriori
+            int lunghezzaLinearizzazione = dizionarioLinearizzazione(primoNumeroPrimaPagina,
+                    Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE).length;
+            int voci = 2 + parte4.size() + parte6.size();
+            byte[] testataXrefPrimaPagina = ("xref\n" + primoNumeroPrimaPagina + " " + voci + "\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            int lunghezzaTrailerPrimaPagina = trailerPrimaPagina(dimensioneXref, id, Long.MAX_VALUE).length;
+
+            // Disposizione senza hint stream
+            long posizione = intestazione.length + lunghezzaLinearizzazione;
+            long offsetXrefPrimaPagina = posizione;
+            posizione += testataXrefPrimaPagina.length + 20L * voci + lunghezzaTrailerPrimaPagina;
+            posizione = disponi(parte4, posizione);
+            long offsetHint = posizione;
+            posizione = disponi(parte6, posizione);
+            for (List<Oggetto> pagina : parte7) {
+                posizione = disponi(pagina, posizione);
+            }
+            posizione = disponi(parte8, posizione);
+            posizione = disponi(parte9, posizione);
+
+            // Tabelle di hint sugli offset senza hint stream, poi spostamento degli oggetti successivi
+            byte[] datiHint = tabelleHint();
+            hint.testa = (hint.numero + " 0 obj\n<< /Length " + datiHint.length + " /S " + lunghezzaTabellaPagine
+                    + " >>\nstream\n").getBytes(StandardCharsets.ISO_8859_1);
+            hint.lunghezzaFlusso = datiHint.length;
+            hint.coda = "\nendstream\nendobj\n".getBytes(StandardCharsets.ISO_8859_1);
+            hint.offset = offsetHint;
+            long lunghezzaHint = hint.dimensione();
+            for (Oggetto oggetto : oggetti.values()) {
+                oggetto.offset = oggetto.offsetSenzaHint + (oggetto.offsetSenzaHint >= offsetHint ? lunghezzaHint : 0);
+            }
+            posizione += lunghezzaHint;
+
+            long offsetXrefPrincipale = posizione;
+            byte[] testataXrefPrincipale = ("xref\n0 " + primoNumeroPrimaPagina + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            // /T: spazio bianco che precede la prima voce della xref principale
+            long offsetPrimaVoce = offsetXrefPrincipale + testataXrefPrincipale.length - 1;
+            byte[] coda = ("trailer\n<< /Size " + primoNumeroPrimaPagina + " >>\nstartxref\n" + offsetXrefPrimaPagina
+                    + "\n%%EOF\n").getBytes(StandardCharsets.ISO_8859_1);
+            long lunghezzaFile = offsetXrefPrincipale + testataXrefPrincipale.length
+                    + 20L * primoNumeroPrimaPagina + coda.length;
+
+            Oggetto ultimoPrimaPagina = parte6.get(parte6.size() - 1);
+            long finePrimaPagina = ultimoPrimaPagina.offset + ultimoPrimaPagina.dimensione();
+
+            // Scrittura
+            out.write(intestazione);
+            out.write(riempi(dizionarioLinearizzazione(primoNumeroPrimaPagina, lunghezzaFile, hint.offset, lunghezzaHint,
+                    finePrimaPagina, offsetPrimaVoce), lunghezzaLinearizzazione, "endobj\n"));
+            out.write(testataXrefPrimaPagina);
+            out.write(vocexref(intestazione.length));
+            for (Oggetto oggetto : parte4) {
+                out.write(vocexref(oggetto.offset));
+            }
+            for (Oggetto oggetto : parte6) {
+                out.write(vocexref(oggetto.offset));
+            }
+            out.write(vocexref(hint.offset));
+            out.write(riempi(trailerPrimaPagina(dimensioneXref, id, offsetXrefPrincipale),
+                    lunghezzaTrailerPrimaPagina, "startxref\n"));
+            for (Oggetto oggetto : parte4) {
+                scriviOggetto(oggetto, out);
+            }
+            out.write(hint.testa);
+            out.write(datiHint);
+            out.write(hint.coda);
+            for (Oggetto oggetto : parte6) {
+                scriviOggetto(oggetto, out);
+            }
+            for (List<Oggetto> pagina : parte7) {
+                for (Oggetto oggetto : pagina) {
+                    scriviOggetto(oggetto, out);
+                }
+            }
+            for (Oggetto oggetto : parte8) {
+                scriviOggetto(oggetto, out);
+            }
+            for (Oggetto oggetto : parte9) {
+                scriviOggetto(oggetto, out);
+            }
+            out.write(testataXrefPrincipale);
+            out.write("0000000000 65535 f\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            List<Oggetto> principali = new ArrayList<>(primoNumeroPrimaPagina);
+            for (List<Oggetto> pagina : parte7) {
+                principali.addAll(pagina);
+            }
+            principali.addAll(parte8);
+            principali.addAll(parte9);
+            for (Oggetto oggetto : principali) {
+                out.write(vocexref(oggetto.offset));
+            }
+            out.write(coda);
+        }
+
+        // ---- Classificazione degli oggetti ----
+
+        private void classifica() {
+            raccogliAlbero(catalogo.getDictionaryObject(COSName.PAGES));
+
+            for (COSDictionary pagina : pagine) {
+                Set<COSBase> usati = new LinkedHashSet<>();
+                usati.add(pagina);
+                raccogli(pagina, usati);
+                oggettiPagina.add(usati);
+                for (COSBase base : usati) {
+                    utilizzi.merge(base, 1, Integer::sum);
+                }
+            }
+
+            // Parte 4: catalogo e oggetti a livello di documento non usati dalle pagine
+            Set<COSBase> documentali = new LinkedHashSet<>();
+            documentali.add(catalogo);
+            raccogli(catalogo, documentali);
+            for (COSBase base : documentali) {
+                if (!utilizzi.containsKey(base) && !nodiAlbero.contains(base)) {
+                    parte4.add(registra(base));
+                }
+            }
+
+            // Parte 6: la prima pagina con tutti gli oggetti che usa, condivisi compresi
+            for (COSBase base : oggettiPagina.get(0)) {
+                parte6.add(registra(base));
+            }
+
+            // Parte 7: pagine successive con i soli oggetti propri
+            for (int i = 1; i < pagine.size(); i++) {
+                List<Oggetto> propri = new ArrayList<>();
+                for (COSBase base : oggettiPagina.get(i)) {
+                    if (base == pagine.get(i) || (utilizzi.get(base) == 1 && !oggetti.containsKey(base))) {
+                        propri.add(registra(base));
+                    }
+                }
+                parte7.add(propri);
+            }
+
+            // Parte 8: oggetti condivisi non già scritti con la prima pagina
+            for (int i = 1; i < pagine.size(); i++) {
+                for (COSBase base : oggettiPagina.get(i)) {
+                    if (!oggetti.containsKey(base)) {
+                        parte8.add(registra(base));
+                    }
+                }
+            }
+
+            // Parte 9: albero delle pagine, informazioni sul documento e tutto il resto
+            Set<COSBase> altri = new LinkedHashSet<>(nodiAlbero);
+            for (COSBase nodo : nodiAlbero) {
+                raccogli(nodo, altri);
+            }
+            COSBase info = risolvi(trailer.getItem(COSName.INFO));
+            if (info != null) {
+                altri.add(info);
+                raccogli(info, altri);
+            }
+            for (COSBase base : altri) {
+                if (!oggetti.containsKey(base)) {
+                    parte9.add(registra(base));
+                }
+            }
+        }
+
+        private Oggetto registra(COSBase base) {
+            return oggetti.computeIfAbsent(base, Oggetto::new);
+        }
+
+        private void raccogliAlbero(COSBase nodo) {
+            nodo = risolvi(nodo);
+            if (!(nodo instanceof COSDictionary) || !COSName.PAGES.equals(((COSDictionary) nodo).getCOSName(COSName.TYPE))) {
+                return;
+            }
+            if (nodiAlbero.add(nodo)) {
+                COSBase figli = ((COSDictionary) nodo).getDictionaryObject(COSName.KIDS);
+                if (figli instanceof COSArray) {
+                    for (COSBase figlio : (COSArray) figli) {
+                        raccogliAlbero(figlio);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Raccoglie gli oggetti indiretti raggiungibili senza risalire l'albero delle
+         * pagine (/Parent) e senza entrare in altre pagine.
+         */
+        private void raccogli(COSBase base, Set<COSBase> raccolti) {
+            if (base instanceof COSDictionary) {
+                for (Map.Entry<COSName, COSBase> voce : ((COSDictionary) base).entrySet()) {
+                    if (!COSName.PARENT.equals(voce.getKey())) {
+                        visita(voce.getValue(), raccolti);
+                    }
+                }
+            } else if (base instanceof COSArray) {
+                for (COSBase elemento : (COSArray) base) {
+                    visita(elemento, raccolti);
+                }
+            }
+        }
+
+        private void visita(COSBase valore, Set<COSBase> raccolti) {
+            if (isIndiretto(valore)) {
+                COSBase oggetto = risolvi(valore);
+                if (oggetto == null || nodiAlbero.contains(oggetto) || insiemePagine.contains(oggetto)
+                        || oggetto == catalogo) {
+                    return;
+                }
+                if (raccolti.add(oggetto)) {
+                    raccogli(oggetto, raccolti);
+                }
+            } else {
+                raccogli(risolvi(valore), raccolti);
+            }
+        }
+
+        // Stessa regola di COSWriter: flussi e dizionari non diretti diventano oggetti indiretti
+        private static boolean isIndiretto(COSBase valore) {
+            if (valore instanceof COSObject) {
+                return ((COSObject) valore).getObject() != null;
+            }
+            return valore instanceof COSStream || (valore instanceof COSDictionary && !valore.isDirect());
+        }
+
+        private static COSBase risolvi(COSBase valore) {
+            return valore instanceof COSObject ? ((COSObject) valore).getObject() : valore;
+        }
+
+        /**
+         * Numeri di oggetto: prima le parti 7, 8 e 9 (xref principale), poi il dizionario
+         * di linearizzazione, le parti 4 e 6 e l'hint stream (xref della prima pagina).
+         * Restituisce il numero del dizionario di linearizzazione.
+         */
+        private int numera() {
+            int numero = 1;
+            for (List<Oggetto> pagina : parte7) {
+                for (Oggetto oggetto : pagina) {
+                    oggetto.numero = numero++;
+                }
+            }
+            for (Oggetto oggetto : parte8) {
+                oggetto.numero = numero++;
+            }
+            for (Oggetto oggetto : parte9) {
+                oggetto.numero = numero++;
+            }
+            int primoNumeroPrimaPagina = numero++;
+            for (Oggetto oggetto : parte4) {
+                oggetto.numero = numero++;
+            }
+            for (Oggetto oggetto : parte6) {
+                oggetto.numero = numero++;
+            }
+            return primoNumeroPrimaPagina;
+        }
+
+        private static long disponi(List<Oggetto> parte, long posizione) {
+            for (Oggetto oggetto : parte) {
+                oggetto.offsetSenzaHint = posizione;
+                posizione += oggetto.dimensione();
+            }
+            return posizione;
+        }
+
+        // ---- Tabelle di hint (allegato F.4) ----
+
+        private int lunghezzaTabellaPagine;
+
+        private byte[] tabelleHint() {
+            int numeroPagine = pagine.size();
+            long[] numeroOggetti = new long[numeroPagine];
+            long[] lunghezze = new long[numeroPagine];
+            List<List<Integer>> condivisi = new ArrayList<>(numeroPagine);
+
+            // Identificativi nella tabella degli oggetti condivisi: prima gli oggetti della
+            // prima pagina, poi quelli della sezione condivisa
+            Map<COSBase, Integer> identificativi = new IdentityHashMap<>();
+            for (int i = 0; i < parte6.size(); i++) {
+                identificativi.put(parte6.get(i).base, i);
+            }
+            for (int i = 0; i < parte8.size(); i++) {
+                identificativi.put(parte8.get(i).base, parte6.size() + i);
+            }
+
+            for (int i = 0; i < numeroPagine; i++) {
+                List<Oggetto> sezione = i == 0 ? parte6 : parte7.get(i - 1);
+                numeroOggetti[i] = sezione.size();
+                Oggetto ultimo = sezione.get(sezione.size() - 1);
+                lunghezze[i] = ultimo.offsetSenzaHint + ultimo.dimensione() - sezione.get(0).offsetSenzaHint;
+                List<Integer> riferimenti = new ArrayList<>();
+                for (COSBase base : oggettiPagina.get(i)) {
+                    if (utilizzi.get(base) > 1) {
+                        riferimenti.add(identificativi.get(base));
+                    }
+                }
+                condivisi.add(riferimenti);
+            }
+
+            long minOggetti = min(numeroOggetti);
+            long minLunghezza = min(lunghezze);
+            int bitOggetti = bit(max(numeroOggetti) - minOggetti);
+            int bitLunghezza = bit(max(lunghezze) - minLunghezza);
+            long maxCondivisi = 0;
+            for (List<Integer> riferimenti : condivisi) {
+                maxCondivisi = Math.max(maxCondivisi, riferimenti.size());
+            }
+            int bitCondivisi = bit(maxCondivisi);
+            int bitIdentificativi = bit(Math.max(0, parte6.size() + parte8.size() - 1));
+
+            // Tabella di offset delle pagine: intestazione (tabella F.3)
+            ScritturaBit bits = new ScritturaBit();
+            bits.scrivi(minOggetti, 32);
+            bits.scrivi(parte6.get(0).offsetSenzaHint, 32);
+            bits.scrivi(bitOggetti, 16);
+            bits.scrivi(minLunghezza, 32);
+            bits.scrivi(bitLunghezza, 16);
+            // Come qpdf: offset del contenuto 0 e lunghezza del contenuto pari a quella della pagina
+            bits.scrivi(0, 32);
+            bits.scrivi(0, 16);
+            bits.scrivi(minLunghezza, 32);
+            bits.scrivi(bitLunghezza, 16);
+            bits.scrivi(bitCondivisi, 16);
+            bits.scrivi(bitIdentificativi, 16);
+            bits.scrivi(0, 16);
+            bits.scrivi(4, 16);
+
+            // Voci per pagina (tabella F.4), una riga allineata al byte per ciascun campo
+            for (long n : numeroOggetti) {
+                bits.scrivi(n - minOggetti, bitOggetti);
+            }
+            bits.allinea();
+            for (long lunghezza : lunghezze) {
+                bits.scrivi(lunghezza - minLunghezza, bitLunghezza);
+            }
+            bits.allinea();
+            for (List<Integer> riferimenti : condivisi) {
+                bits.scrivi(riferimenti.size(), bitCondivisi);
+            }
+            bits.allinea();
+            for (List<Integer> riferimenti : condivisi) {
+                for (int identificativo : riferimenti) {
+                    bits.scrivi(identificativo, bitIdentificativi);
+                }
+            }
+            bits.allinea();
+            // Numeratori della posizione frazionaria e offset del contenuto occupano 0 bit
+            for (long lunghezza : lunghezze) {
+                bits.scrivi(lunghezza - minLunghezza, bitLunghezza);
+            }
+            bits.allinea();
+            lunghezzaTabellaPagine = bits.dimensione();
+
+            // Tabella degli oggetti condivisi: intestazione (tabella F.5), un gruppo per oggetto
+            long[] lunghezzeGruppi = new long[parte6.size() + parte8.size()];
+            for (int i = 0; i < parte6.size(); i++) {
+                lunghezzeGruppi[i] = parte6.get(i).dimensione();
+            }
+            for (int i = 0; i < parte8.size(); i++) {
+                lunghezzeGruppi[parte6.size() + i] = parte8.get(i).dimensione();
+            }
+            long minGruppo = min(lunghezzeGruppi);
+            int bitGruppo = bit(max(lunghezzeGruppi) - minGruppo);
+            bits.scrivi(parte8.isEmpty() ? 0 : parte8.get(0).numero, 32);
+            bits.scrivi(parte8.isEmpty() ? 0 : parte8.get(0).offsetSenzaHint, 32);
+            bits.scrivi(parte6.size(), 32);
+            bits.scrivi(lunghezzeGruppi.length, 32);
+            bits.scrivi(0, 16);
+            bits.scrivi(minGruppo, 32);
+            bits.scrivi(bitGruppo, 16);
+
+            // Voci per gruppo (tabella F.6): lunghezza, flag di firma, numero di oggetti - 1
+            for (long lunghezza : lunghezzeGruppi) {
+                bits.scrivi(lunghezza - minGruppo, bitGruppo);
+            }
+            bits.allinea();
+            for (int i = 0; i < lunghezzeGruppi.length; i++) {
+                bits.scrivi(0, 1);
+            }
+            bits.allinea();
+            return bits.toByteArray();
+        }
+
+        private static long min(long[] valori) {
+            long minimo = Long.MAX_VALUE;
+            for (long valore : valori) {
+                minimo = Math.min(minimo, valore);
+            }
+            return valori.length == 0 ? 0 : minimo;
+        }
+
+        private static long max(long[] valori) {
+            long massimo = 0;
+            for (long valore : valori) {
+                massimo = Math.max(massimo, valore);
+            }
+            return massimo;
+        }
+
+        // Bit necessari per rappresentare il valore (0 per lo zero)
+        private static int bit(long valore) {
+            return 64 - Long.numberOfLeadingZeros(valore);
+        }
+
+        // ---- Serializzazione ----
+
+        private void serializza(Oggetto oggetto) throws IOException {
+            ByteArrayOutputStream testa = new ByteArrayOutputStream();
+            testa.write((oggetto.numero + " 0 obj\n").getBytes(StandardCharsets.ISO_8859_1));
+            if (oggetto.base instanceof COSStream) {
+                COSStream flusso = (COSStream) oggetto.base;
+                oggetto.lunghezzaFlusso = flusso.getLength();
+                scriviDizionario(flusso, testa, oggetto.lunghezzaFlusso);
+                testa.write("\nstream\n".getBytes(StandardCharsets.ISO_8859_1));
+                oggetto.coda = "\nendstream\nendobj\n".getBytes(StandardCharsets.ISO_8859_1);
+            } else {
+                scriviValore(oggetto.base, testa);
+                oggetto.coda = "\nendobj\n".getBytes(StandardCharsets.ISO_8859_1);
+            }
+            oggetto.testa = testa.toByteArray();
+        }
+
+        private void scriviOggetto(Oggetto oggetto, OutputStream out) throws IOException {
+            out.write(oggetto.testa);
+            if (oggetto.lunghezzaFlusso >= 0) {
+                long copiati = 0;
+                byte[] blocco = new byte[64 * 1024];
+                try (InputStream in = ((COSStream) oggetto.base).createRawInputStream()) {
+                    int letti;
+                    while ((letti = in.read(blocco)) > 0) {
+                        out.write(blocco, 0, letti);
+                        copiati += letti;
+                    }
+                }
+                if (copiati != oggetto.lunghezzaFlusso) {
+                    throw new IOException("Lunghezza del flusso " + oggetto.numero + " incoerente: "
+                            + copiati + " invece di " + oggetto.lunghezzaFlusso);
+                }
+            }
+            out.write(oggetto.coda);
+        }
+
+        private void scriviDizionario(COSDictionary dizionario, OutputStream out, long lunghezzaFlusso) throws IOException {
+            out.write(COSWriter.DICT_OPEN);
+            for (Map.Entry<COSName, COSBase> voce : dizionario.entrySet()) {
+                if (lunghezzaFlusso >= 0 && COSName.LENGTH.equals(voce.getKey())) {
+                    continue;
+                }
+                if (voce.getValue() == null) {
+                    continue;
+                }
+                out.write(FINE_RIGA);
+                voce.getKey().writePDF(out);
+                out.write(COSWriter.SPACE);
+                scriviRiferimentoOValore(voce.getValue(), out);
+            }
+            if (lunghezzaFlusso >= 0) {
+                out.write(FINE_RIGA);
+                COSName.LENGTH.writePDF(out);
+                out.write(COSWriter.SPACE);
+                COSInteger.get(lunghezzaFlusso).writePDF(out);
+            }
+            out.write(FINE_RIGA);
+            out.write(COSWriter.DICT_CLOSE);
+        }
+
+        private void scriviRiferimentoOValore(COSBase valore, OutputStream out) throws IOException {
+            if (isIndiretto(valore)) {
+                Oggetto riferito = oggetti.get(risolvi(valore));
+                if (riferito != null) {
+                    out.write((riferito.numero + " 0 R").getBytes(StandardCharsets.ISO_8859_1));
+                    return;
+                }
+                // Oggetto fuori dal grafo raggiungibile (es. /Parent di una pagina staccata)
+                COSNull.NULL.writePDF(out);
+                return;
+            }
+            scriviValore(risolvi(valore), out);
+        }
+
+        private void scriviValore(COSBase valore, OutputStream out) throws IOException {
+            if (valore == null || valore instanceof COSNull) {
+                COSNull.NULL.writePDF(out);
+            } else if (valore instanceof COSDictionary) {
+                scriviDizionario((COSDictionary) valore, out, -1);
+            } else if (valore instanceof COSArray) {
+                out.write(COSWriter.ARRAY_OPEN);
+                boolean primo = true;
+                for (COSBase elemento : (COSArray) valore) {
+                    if (!primo) {
+                        out.write(COSWriter.SPACE);
+                    }
+                    primo = false;
+                    scriviRiferimentoOValore(elemento, out);
+                }
+                out.write(COSWriter.ARRAY_CLOSE);
+            } else if (valore instanceof COSString) {
+                COSWriter.writeString((COSString) valore, out);
+            } else if (valore instanceof COSName) {
+                ((COSName) valore).writePDF(out);
+            } else if (valore instanceof COSInteger) {
+                ((COSInteger) valore).writePDF(out);
+            } else if (valore instanceof COSFloat) {
+                ((COSFloat) valore).writePDF(out);
+            } else if (valore instanceof COSBoolean) {
+                ((COSBoolean) valore).writePDF(out);
+            } else {
+                throw new IOException("Tipo di oggetto PDF non supportato: " + valore.getClass().getSimpleName());
+            }
+        }
+
+        // ---- Parti a lunghezza riservata ----
+
+        private byte[] dizionarioLinearizzazione(int numero, long lunghezzaFile, long offsetHint, long lunghezzaHint,
+                                                 long finePrimaPagina, long offsetPrimaVoce) {
+            String testo = numero + " 0 obj\n<< /Linearized 1 /L " + cifre(lunghezzaFile)
+                    + " /H [ " + cifre(offsetHint) + " " + cifre(lunghezzaHint) + " ]"
+                    + " /O " + (numero + 1 + parte4.size())
+                    + " /E " + cifre(finePrimaPagina)
+                    + " /N " + pagine.size()
+                    + " /T " + cifre(offsetPrimaVoce) + " >>\nendobj\n";
+            return testo.getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private byte[] trailerPrimaPagina(int dimensione, byte[] id, long offsetXrefPrincipale) {
+            StringBuilder testo = new StringBuilder("trailer\n<< /Size ").append(dimensione);
+            testo.append(" /Root ").append(oggetti.get(catalogo).numero).append(" 0 R");
+            COSBase info = risolvi(trailer.getItem(COSName.INFO));
+            if (info != null && oggetti.containsKey(info)) {
+                testo.append(" /Info ").append(oggetti.get(info).numero).append(" 0 R");
+            }
+            String esadecimale = esadecimale(id);
+            testo.append(" /ID [<").append(esadecimale).append("><").append(esadecimale).append(">]");
+            testo.append(" /Prev ").append(cifre(offsetXrefPrincipale)).append(" >>\nstartxref\n0\n%%EOF\n");
+            return testo.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // Con Long.MAX_VALUE produce il segnaposto di larghezza massima
+        private static String cifre(long valore) {
+            if (valore == Long.MAX_VALUE) {
+                return "9".repeat(CIFRE_RISERVATE);
+            }
+            return Long.toString(valore);
+        }
+
+        /**
+         * Porta il testo alla lunghezza riservata inserendo spazi prima del marcatore finale.
+         */
+        private static byte[] riempi(byte[] testo, int lunghezza, String marcatore) {
+            String stringa = new String(testo, StandardCharsets.ISO_8859_1);
+            int indice = stringa.lastIndexOf(marcatore);
+            int mancanti = lunghezza - testo.length;
+            if (mancanti < 0) {
+                throw new IllegalStateException("Spazio riservato insufficiente per " + marcatore.trim());
+            }
+            String riempito = stringa.substring(0, indice - 1) + " ".repeat(mancanti) + stringa.substring(indice - 1);
+            return riempito.getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private static byte[] vocexref(long offset) {
+            return String.format(Locale.ROOT, "%010d 00000 n\r\n", offset).getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private byte[] identificativo() {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                md5.update(Long.toString(System.nanoTime()).getBytes(StandardCharsets.ISO_8859_1));
+                md5.update(Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.ISO_8859_1));
+                for (Oggetto oggetto : oggetti.values()) {
+                    md5.update(oggetto.testa, 0, Math.min(oggetto.testa.length, 64));
+                }
+                return md5.digest();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 non disponibile", e);
+            }
+        }
+
+        private static String esadecimale(byte[] dati) {
+            StringBuilder testo = new StringBuilder(dati.length * 2);
+            for (byte b : dati) {
+                testo.append(String.format("%02X", b));
+            }
+            return testo.toString();
+        }
+    }
+
+    /**
+     * Scrittura di campi di bit big-endian per le tabelle di hint.
+     */
+    private static final class ScritturaBit {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int corrente;
+        private int bitOccupati;
+
+        void scrivi(long valore, int bit) {
+            for (int i = bit - 1; i >= 0; i--) {
+                corrente = (corrente << 1) | (int) ((valore >>> i) & 1);
+                if (++bitOccupati == 8) {
+                    out.write(corrente);
+                    corrente = 0;
+                    bitOccupati = 0;
+                }
+            }
+        }
+
+        void allinea() {
+            if (bitOccupati > 0) {
+                scrivi(0, 8 - bitOccupati);
+            }
+        }
+
+        int dimensione() {
+            return out.size() + (bitOccupati > 0 ? 1 : 0);
+        }
+
+        byte[] toByteArray() {
+            allinea();
+            return out.toByteArray();
+        }
+    }
+}
+//EOF
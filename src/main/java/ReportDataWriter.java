@@ -0,0 +1,366 @@
+// ReportDataWriter.java
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Emissione dei dati del rapporto in formati leggeri (JSON, CSV, HTML)
+ *
+ * Usa lo stesso modello del PDF (ordinamento FEFO, stato, giorni a scadenza,
+ * completezza e articoli bloccati) ma non carica PDFBox: pensato per i client
+ * che vogliono solo i dati calcolati. L'output è scritto riga per riga sul
+ * Writer indicato, senza costruire il documento in memoria.
+ */
+public final class ReportDataWriter {
+
+    public enum Formato {
+        JSON("json", "application/json"),
+        CSV("csv", "text/csv"),
+        HTML("html", "text/html");
+
+        public final String estensione;
+        public final String contentType;
+
+        Formato(String estensione, String contentType) {
+            this.estensione = estensione;
+            this.contentType = contentType;
+        }
+
+        public static Formato daNome(String nome) {
+            for (Formato formato : values()) {
+                if (formato.estensione.equalsIgnoreCase(nome)) {
+                    return formato;
+                }
+            }
+            throw new IllegalArgumentException("Formato non supportato: " + nome);
+        }
+    }
+
+    private static final char SEPARATORE_CSV = ';';
+
+    private ReportDataWriter() {
+    }
+
+    public static void scrivi(
+            Writer out,
+            Formato formato,
+            String sede,
+            String operatoreNome,
+            LocalDate data,
+            List<ReportGenerator.Sezione> cassette,
+            String revisione
+    ) throws IOException {
+
+        if (data == null) {
+            data = LocalDate.now();
+        }
+
+        if (revisione == null || revisione.isEmpty()) {
+            revisione = ReportGenerator.REVISIONE_PREDEFINITA;
+        }
+
+        switch (formato) {
+            case JSON:
+                scriviJson(out, sede, operatoreNome, data, cassette, revisione);
+                break;
+            case CSV:
+                scriviCsv(out, cassette);
+                break;
+            case HTML:
+                scriviHtml(out, sede, operatoreNome, data, cassette, revisione);
+                break;
+            default:
+                throw new IllegalArgumentException("Formato non supportato: " + formato);
+        }
+        out.flush();
+    }
+
+    // ---- JSON ----
+
+    private static void scriviJson(Writer out, String sede, String operatoreNome, LocalDate data,
+                                   List<ReportGenerator.Sezione> cassette, String revisione) throws IOException {
+        out.write("{\"sede\":");
+        stringaJson(out, sede);
+        out.write(",\"operatore\":");
+        stringaJson(out, operatoreNome);
+        out.write(",\"data\":");
+        stringaJson(out, data.toString());
+        out.write(",\"dataFormattata\":");
+        stringaJson(out, ReportGenerator.formattaData(data));
+        out.write(",\"revisione\":");
+        stringaJson(out, revisione);
+        out.write(",\"kit\":[");
+
+        boolean primoKit = true;
+        for (ReportGenerator.Sezione sezione : cassette) {
+            if (!primoKit) {
+                out.write(',');
+            }
+            primoKit = false;
+
+            out.write("\n{\"titolo\":");
+            stringaJson(out, sezione.titolo);
+            out.write(",\"ubicazione\":");
+            stringaJson(out, sezione.ubicazione);
+            out.write(",\"responsabile\":");
+            stringaJson(out, sezione.responsabile);
+            out.write(",\"completezza\":");
+            out.write(formattaPercentuale(sezione.calcolaPercentualeCompletezza()));
+            out.write(",\"articoli\":[");
+
+            boolean primoArticolo = true;
+            for (ReportGenerator.Articolo articolo : sezione.getArticoliOrdinatiPerFEFO()) {
+                if (!primoArticolo) {
+                    out.write(',');
+                }
+                primoArticolo = false;
+                articoloJson(out, articolo);
+            }
+
+            out.write("],\"bloccati\":[");
+            boolean primoBloccato = true;
+            for (ReportGenerator.Articolo articolo : sezione.getArticoliBloccati()) {
+                if (!primoBloccato) {
+                    out.write(',');
+                }
+                primoBloccato = false;
+                articoloJson(out, articolo);
+            }
+            out.write("]}");
+        }
+        out.write("\n]}\n");
+    }
+
+    private static void articoloJson(Writer out, ReportGenerator.Articolo articolo) throws IOException {
+        out.write("\n{\"codice\":");
+        stringaJson(out, articolo.codice);
+        out.write(",\"nome\":");
+        stringaJson(out, articolo.nome);
+        out.write(",\"lotto\":");
+        stringaJson(out, articolo.lotto);
+        out.write(",\"seriale\":");
+        stringaJson(out, articolo.seriale);
+        out.write(",\"scadenza\":");
+        stringaJson(out, articolo.scadenza);
+        out.write(",\"giorniAScadenza\":");
+        out.write(articolo.giorniAScadenza >= 0 ? String.valueOf(articolo.giorniAScadenza) : "null");
+        out.write(",\"quantitaAttuale\":");
+        out.write(String.valueOf(articolo.quantitaAttuale));
+        out.write(",\"sogliaMinima\":");
+        out.write(String.valueOf(articolo.sogliaMinima));
+        out.write(",\"quantitaMassima\":");
+        out.write(String.valueOf(articolo.quantitaMassima));
+        out.write(",\"stato\":");
+        stringaJson(out, articolo.stato);
+        out.write(",\"sottoSoglia\":");
+        out.write(String.valueOf(articolo.isSottoSoglia()));
+        out.write(",\"quantitaEccessiva\":");
+        out.write(String.valueOf(articolo.isQuantitaEccessiva()));
+        out.write('}');
+    }
+
+    private static void stringaJson(Writer out, String valore) throws IOException {
+        if (valore == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < valore.length(); i++) {
+            char c = valore.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+            }
+        }
+        out.write('"');
+    }
+
+    // ---- CSV ----
+
+    private static void scriviCsv(Writer out, List<ReportGenerator.Sezione> cassette) throws IOException {
+        out.write("kit;ubicazione;responsabile;completezza;codice;nome;lotto;seriale;scadenza;"
+                + "giorni_a_scadenza;quantita;minimo;massimo;stato;bloccato\r\n");
+
+        for (ReportGenerator.Sezione sezione : cassette) {
+            String completezza = formattaPercentuale(sezione.calcolaPercentualeCompletezza());
+            for (ReportGenerator.Articolo articolo : sezione.getArticoliOrdinatiPerFEFO()) {
+                rigaCsv(out, sezione, completezza, articolo, false);
+            }
+            for (ReportGenerator.Articolo articolo : sezione.getArticoliBloccati()) {
+                rigaCsv(out, sezione, completezza, articolo, true);
+            }
+        }
+    }
+
+    private static void rigaCsv(Writer out, ReportGenerator.Sezione sezione, String completezza,
+                                ReportGenerator.Articolo articolo, boolean bloccato) throws IOException {
+        campoCsv(out, sezione.titolo);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, sezione.ubicazione);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, sezione.responsabile);
+        out.write(SEPARATORE_CSV);
+        out.write(completezza);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, articolo.codice);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, articolo.nome);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, articolo.lotto);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, articolo.seriale);
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, articolo.scadenza);
+        out.write(SEPARATORE_CSV);
+        out.write(articolo.giorniAScadenza >= 0 ? String.valueOf(articolo.giorniAScadenza) : "");
+        out.write(SEPARATORE_CSV);
+        out.write(String.valueOf(articolo.quantitaAttuale));
+        out.write(SEPARATORE_CSV);
+        out.write(String.valueOf(articolo.sogliaMinima));
+        out.write(SEPARATORE_CSV);
+        out.write(String.valueOf(articolo.quantitaMassima));
+        out.write(SEPARATORE_CSV);
+        campoCsv(out, articolo.stato);
+        out.write(SEPARATORE_CSV);
+        out.write(bloccato ? "SI" : "NO");
+        out.write("\r\n");
+    }
+
+    private static void campoCsv(Writer out, String valore) throws IOException {
+        if (valore == null) {
+            return;
+        }
+        boolean virgolette = valore.indexOf(SEPARATORE_CSV) >= 0 || valore.indexOf('"') >= 0
+                || valore.indexOf('\n') >= 0 || valore.indexOf('\r') >= 0;
+        if (!virgolette) {
+            out.write(valore);
+            return;
+        }
+        out.write('"');
+        out.write(valore.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    // ---- HTML ----
+
+    private static void scriviHtml(Writer out, String sede, String operatoreNome, LocalDate data,
+                                   List<ReportGenerator.Sezione> cassette, String revisione) throws IOException {
+        out.write("<!DOCTYPE html>\n<html lang=\"it\">\n<head>\n<meta charset=\"UTF-8\">\n");
+        out.write("<title>Check verifica contenuto minimo - cassetta di primo soccorso</title>\n");
+        out.write("<style>table{border-collapse:collapse}td,th{border:1px solid #999;padding:2px 6px}"
+                + ".SCADUTO,.QUARANTENA,.RICHIAMO{background:#ffc8c8}.IN_SCADENZA{background:#ffffc8}</style>\n");
+        out.write("</head>\n<body>\n");
+        out.write("<h1>CHECK VERIFICA CONTENUTO MINIMO - CASSETTA DI PRIMO SOCCORSO</h1>\n<p>");
+        out.write("Sede: ");
+        testoHtml(out, sede);
+        out.write("<br>Data: ");
+        testoHtml(out, ReportGenerator.formattaData(data));
+        out.write("<br>Operatore: ");
+        testoHtml(out, operatoreNome);
+        out.write("<br>");
+        testoHtml(out, revisione);
+        out.write("</p>\n");
+
+        for (ReportGenerator.Sezione sezione : cassette) {
+            out.write("<section>\n<h2>");
+            testoHtml(out, sezione.getTestataKit());
+            out.write("</h2>\n<table>\n<tr><th>Codice</th><th>Nome</th><th>Lotto/Ser.</th><th>Scadenza</th>"
+                    + "<th>Gg.Scad.</th><th>Qta</th><th>Min</th><th>Max</th><th>Stato</th></tr>\n");
+
+            for (ReportGenerator.Articolo articolo : sezione.getArticoliOrdinatiPerFEFO()) {
+                out.write("<tr class=\"");
+                testoHtml(out, articolo.stato);
+                out.write("\"><td>");
+                testoHtml(out, articolo.codice.isEmpty() ? "N/D" : articolo.codice);
+                out.write("</td><td>");
+                testoHtml(out, articolo.nome);
+                out.write("</td><td>");
+                testoHtml(out, articolo.lotto.isEmpty() ? (articolo.seriale.isEmpty() ? "N/D" : articolo.seriale) : articolo.lotto);
+                out.write("</td><td>");
+                testoHtml(out, articolo.scadenza.isEmpty() ? "N/D" : articolo.scadenza);
+                out.write("</td><td>");
+                out.write(articolo.giorniAScadenza >= 0 ? String.valueOf(articolo.giorniAScadenza) : "N/D");
+                out.write("</td><td>");
+                out.write(String.valueOf(articolo.quantitaAttuale));
+                out.write("</td><td>");
+                out.write(String.valueOf(articolo.sogliaMinima));
+                out.write("</td><td>");
+                out.write(String.valueOf(articolo.quantitaMassima));
+                out.write("</td><td>");
+                testoHtml(out, articolo.stato);
+                out.write("</td></tr>\n");
+            }
+            out.write("</table>\n");
+
+            List<ReportGenerator.Articolo> articoliBloccati = sezione.getArticoliBloccati();
+            if (!articoliBloccati.isEmpty()) {
+                out.write("<p><strong>ARTICOLI BLOCCATI (Quarantena/Richiamo):</strong></p>\n<ul>\n");
+                for (ReportGenerator.Articolo articolo : articoliBloccati) {
+                    out.write("<li>");
+                    testoHtml(out, articolo.nome + " - " + articolo.stato);
+                    out.write("</li>\n");
+                }
+                out.write("</ul>\n");
+            }
+            out.write("</section>\n");
+        }
+        out.write("</body>\n</html>\n");
+    }
+
+    private static void testoHtml(Writer out, String valore) throws IOException {
+        if (valore == null) {
+            return;
+        }
+        for (int i = 0; i < valore.length(); i++) {
+            char c = valore.charAt(i);
+            switch (c) {
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                case '\'':
+                    out.write("&#39;");
+                    break;
+                default:
+                    out.write(c);
+                    break;
+            }
+        }
+    }
+
+    private static String formattaPercentuale(double percentuale) {
+        return String.format(Locale.ROOT, "%.1f", percentuale);
+    }
+}
+//EOF
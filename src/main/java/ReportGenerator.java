@@ -1,22 +1,41 @@
 // ReportGenerator.java
 
+import com.sun.net.httpserver.HttpServer;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
 
 /**
  * Generatore di rapporti PDF per cassette di primo soccorso
@@ -53,15 +72,28 @@ public class ReportGenerator {
     private static final float TITLE_SPACING = 20f;
     private static final float BULLET_INDENT = 15f;
     private static final float MIN_SECTION_HEIGHT = 40f;
+    // Misure della tabella disegnata da drawSectionAsTable
+    private static final float ALTEZZA_TESTATA_KIT = 22f;
+    private static final float ALTEZZA_RIGA_TABELLA = 13f;
+    private static final float DISCENDENTE_TESTO = 3f;
+    private static final float INIZIO_CONTENUTO_Y = PAGE_HEIGHT - MARGIN - HEADER_HEIGHT - SECTION_SPACING;
     
     // Font e dimensioni
-    private static final PDType1Font FONT_BOLD = PDType1Font.HELVETICA_BOLD;
-    private static final PDType1Font FONT_REGULAR = PDType1Font.HELVETICA;
+    // I font standard sono inizializzati solo al primo rendering PDF: i formati
+    // dati (JSON/CSV/HTML) non devono pagare il caricamento di PDFBox
+    private static final class FontStandard {
+        static final PDType1Font BOLD = PDType1Font.HELVETICA_BOLD;
+        static final PDType1Font REGULAR = PDType1Font.HELVETICA;
+    }
     private static final float TITLE_FONT_SIZE = 14f;
     private static final float HEADER_FONT_SIZE = 10f;
     private static final float SECTION_FONT_SIZE = 12f;
     private static final float CONTENT_FONT_SIZE = 10f;
     
+    static final String REVISIONE_PREDEFINITA = "Rev.05";
+    // Attesa del lock dello storico per una singola generazione: un watcher o un worker lo tengono aperto
+    private static final Duration ATTESA_STORICO = Duration.ofSeconds(10);
+    
     public static class Articolo {
         public String codice;
         public String nome;
@@ -334,6 +366,104 @@ public class ReportGenerator {
             
             return articoliOrdinati;
         }
+        
+        public List<Articolo> getArticoliBloccati() {
+            List<Articolo> articoliBloccati = new ArrayList<>();
+            for (Articolo articolo : articoli) {
+                if (articolo.inQuarantena || articolo.inRichiamo) {
+                    articoliBloccati.add(articolo);
+                }
+            }
+            return articoliBloccati;
+        }
+    }
+    
+    /**
+     * Strategia di disposizione delle sezioni nelle due colonne.
+     * SEQUENZIALE mantiene l'ordine di input (predefinita, adatta agli audit);
+     * COMPATTA riordina le sezioni per ridurre il numero di pagine.
+     */
+    public enum ModalitaImpaginazione {
+        SEQUENZIALE,
+        COMPATTA;
+        
+        public static ModalitaImpaginazione daNome(String nome) {
+            if (nome == null || nome.isEmpty()) {
+                return SEQUENZIALE;
+            }
+            return valueOf(nome.toUpperCase(Locale.ROOT));
+        }
+    }
+    
+    /**
+     * Opzioni facoltative di rendering; i valori predefiniti riproducono il rapporto classico.
+     */
+    public static class OpzioniRendering {
+        public ModalitaImpaginazione impaginazione = ModalitaImpaginazione.SEQUENZIALE;
+        // Termine entro cui consegnare il rapporto; se a rischio si applica DegradazioneRendering
+        public Instant termine;
+        // PDF linearizzato ("fast web view"): la prima pagina è visualizzabile dopo un breve prefisso
+        public boolean linearizzato;
+    }
+    
+    /**
+     * Kit interamente conforme: nessun articolo bloccato, scaduto, in scadenza o sotto soglia.
+     */
+    static boolean isKitConforme(Sezione sezione) {
+        if (sezione.articoli.isEmpty()) {
+            return false;
+        }
+        for (Articolo articolo : sezione.articoli) {
+            if (articolo.inQuarantena || articolo.inRichiamo || !"OK".equals(articolo.stato) || articolo.isSottoSoglia()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Kit conforme ridotto a una riga di riepilogo (degradazione KIT_RIASSUNTI).
+     */
+    private static final class SezioneRiassunta extends Sezione {
+        SezioneRiassunta(Sezione originale) {
+            super(originale.titolo, originale.ubicazione, originale.responsabile, new ArrayList<>(originale.articoli));
+            this.righe = new ArrayList<>();
+            this.righe.add(getRigaRiepilogo());
+        }
+        
+        String getRigaRiepilogo() {
+            return articoli.size() + " articoli conformi - dettaglio omesso";
+        }
+    }
+    
+    private static final class Posizionamento {
+        final Sezione sezione;
+        final int pagina;
+        final int colonna;
+        final float y;
+        final float altezza;
+        
+        Posizionamento(Sezione sezione, int pagina, int colonna, float y, float altezza) {
+            this.sezione = sezione;
+            this.pagina = pagina;
+            this.colonna = colonna;
+            this.y = y;
+            this.altezza = altezza;
+        }
+    }
+    
+    public static void generate(
+            Path outputPdf,
+            Path logoPng,
+            String sede,
+            String operatoreNome,
+            Path firmaPng,
+            LocalDate data,
+            List<Sezione> cassette,
+            String revisione
+    ) throws IOException {
+        
+        generate(outputPdf, logoPng, sede, operatoreNome, firmaPng, data, cassette, revisione, new OpzioniRendering());
     }
     
     public static void generate(
@@ -344,130 +474,340 @@ public class ReportGenerator {
             Path firmaPng,
             LocalDate data,
             List<Sezione> cassette,
+            String revisione,
+            OpzioniRendering opzioni
+    ) throws IOException {
+        
+        ReportOutputBuffer buffer = render(logoPng, sede, operatoreNome, firmaPng, data, cassette, revisione, opzioni);
+        try {
+            salvaSuFile(buffer, outputPdf);
+        } finally {
+            buffer.rilascia();
+        }
+    }
+    
+    // Il file viene aperto solo a rendering completato, come con document.save(File)
+    static void salvaSuFile(ReportOutputBuffer buffer, Path output) throws IOException {
+        try (FileChannel canale = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.trasferisci(canale);
+        }
+    }
+    
+    /**
+     * Variante che consegna il PDF direttamente su un canale (socket, pipe, stdout)
+     * senza passare da un file intermedio. Il canale non viene chiuso.
+     */
+    public static void generate(
+            WritableByteChannel destinazione,
+            Path logoPng,
+            String sede,
+            String operatoreNome,
+            Path firmaPng,
+            LocalDate data,
+            List<Sezione> cassette,
             String revisione
     ) throws IOException {
         
+        ReportOutputBuffer buffer = render(logoPng, sede, operatoreNome, firmaPng, data, cassette, revisione,
+                new OpzioniRendering());
+        try {
+            buffer.trasferisci(destinazione);
+        } finally {
+            buffer.rilascia();
+        }
+    }
+    
+    /**
+     * Genera il PDF in un buffer del pool; il chiamante deve invocare
+     * {@link ReportOutputBuffer#rilascia()} dopo averlo consegnato.
+     */
+    static ReportOutputBuffer render(
+            Path logoPng,
+            String sede,
+            String operatoreNome,
+            Path firmaPng,
+            LocalDate data,
+            List<Sezione> cassette,
+            String revisione,
+            OpzioniRendering opzioni
+    ) throws IOException {
+        
         if (data == null) {
             data = LocalDate.now();
         }
         
         if (revisione == null || revisione.isEmpty()) {
-            revisione = "Rev.05"; // Default revision
+            revisione = REVISIONE_PREDEFINITA;
+        }
+        
+        // Stima del lavoro e degradazioni necessarie per rispettare il termine
+        long inizio = System.nanoTime();
+        DegradazioneRendering.Stima stima = DegradazioneRendering.stima(cassette, logoPng, firmaPng);
+        EnumSet<DegradazioneRendering.Livello> degradazioni = DegradazioneRendering.pianifica(stima, opzioni.termine);
+        boolean ombreggiatura = !degradazioni.contains(DegradazioneRendering.Livello.SENZA_OMBREGGIATURA);
+        if (degradazioni.contains(DegradazioneRendering.Livello.KIT_RIASSUNTI)) {
+            List<Sezione> riassunte = new ArrayList<>(cassette.size());
+            for (Sezione sezione : cassette) {
+                riassunte.add(isKitConforme(sezione) ? new SezioneRiassunta(sezione) : sezione);
+            }
+            cassette = riassunte;
         }
         
         try (PDDocument document = new PDDocument()) {
+            CaratteriUnicode caratteri = new CaratteriUnicode(document);
+            
             // Carica immagini se disponibili
-            PDImageXObject logoImage = null;
-            if (logoPng != null && Files.exists(logoPng)) {
-                logoImage = PDImageXObject.createFromFile(logoPng.toString(), document);
-            }
+            PDImageXObject logoImage = caricaImmagine(logoPng, document, degradazioni, LOGO_MAX_WIDTH, LOGO_MAX_HEIGHT);
+            PDImageXObject firmaImage = caricaImmagine(firmaPng, document, degradazioni,
+                    SIGNATURE_MAX_WIDTH, SIGNATURE_MAX_HEIGHT);
             
-            PDImageXObject firmaImage = null;
-            if (firmaPng != null && Files.exists(firmaPng)) {
-                firmaImage = PDImageXObject.createFromFile(firmaPng.toString(), document);
-            }
+            String dataFormattata = formattaData(data);
             
-            // Formatta la data in italiano
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEEE d MMMM uuuu", Locale.ITALIAN);
-            String dataFormattata = data.format(formatter);
-            // Capitalizza la prima lettera
-            dataFormattata = dataFormattata.substring(0, 1).toUpperCase() + dataFormattata.substring(1);
+            // Calcola la disposizione delle sezioni sulle pagine
+            List<Posizionamento> posizionamenti = opzioni.impaginazione == ModalitaImpaginazione.COMPATTA
+                    ? pianificaCompatta(cassette)
+                    : pianificaSequenziale(cassette);
+            int numeroPagine = 1;
+            for (Posizionamento posizionamento : posizionamenti) {
+                numeroPagine = Math.max(numeroPagine, posizionamento.pagina + 1);
+            }
             
             // Genera il contenuto
             List<PDPage> pages = new ArrayList<>();
             List<PDPageContentStream> contentStreams = new ArrayList<>();
-            
-            // Prima pagina
-            PDPage currentPage = new PDPage(PDRectangle.A4);
-            document.addPage(currentPage);
-            pages.add(currentPage);
-            PDPageContentStream contentStream = new PDPageContentStream(document, currentPage);
-            contentStreams.add(contentStream);
-            
-            // Disegna intestazione
-            drawHeader(contentStream, logoImage, sede, dataFormattata, operatoreNome, revisione);
-            
-            // Posizione corrente per il contenuto con allineamento migliorato
-            float currentY = PAGE_HEIGHT - MARGIN - HEADER_HEIGHT - SECTION_SPACING;
-            int currentColumn = 0; // 0 = sinistra, 1 = destra
-            float leftColumnY = currentY;
-            float rightColumnY = currentY;
-            
-            // Disegna sezioni con controllo anti-sovrapposizione migliorato
-            for (Sezione sezione : cassette) {
-                float sectionHeight = calculateSectionHeight(sezione);
-                
-                // Determina quale colonna usare (quella con più spazio disponibile)
-                if (currentColumn == 0 || leftColumnY >= rightColumnY) {
-                    currentColumn = 0;
-                    currentY = leftColumnY;
-                } else {
-                    currentColumn = 1;
-                    currentY = rightColumnY;
-                }
-                
-                // Controllo spazio disponibile per evitare sovrapposizioni
-                float availableHeight = currentY - MARGIN - FOOTER_HEIGHT;
-                
-                // Se non c'è abbastanza spazio, prova l'altra colonna o nuova pagina
-                if (availableHeight < sectionHeight + MIN_SECTION_HEIGHT) {
-                    if (currentColumn == 0 && rightColumnY - MARGIN - FOOTER_HEIGHT >= sectionHeight + MIN_SECTION_HEIGHT) {
-                        // Prova la seconda colonna
-                        currentColumn = 1;
-                        currentY = rightColumnY;
-                    } else {
-                        // Nuova pagina necessaria
-                        contentStream.close();
-                        
-                        currentPage = new PDPage(PDRectangle.A4);
-                        document.addPage(currentPage);
-                        pages.add(currentPage);
-                        contentStream = new PDPageContentStream(document, currentPage);
-                        contentStreams.add(contentStream);
-                        
-                        drawHeader(contentStream, logoImage, sede, dataFormattata, operatoreNome, revisione);
-                        currentY = PAGE_HEIGHT - MARGIN - HEADER_HEIGHT - SECTION_SPACING;
-                        leftColumnY = currentY;
-                        rightColumnY = currentY;
-                        currentColumn = 0;
-                    }
-                }
+            for (int i = 0; i < numeroPagine; i++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                pages.add(page);
+                PDPageContentStream contentStream = new PDPageContentStream(document, page);
+                contentStreams.add(contentStream);
                 
+                // Disegna intestazione
+                drawHeader(contentStream, caratteri, logoImage, sede, dataFormattata, operatoreNome, revisione);
+            }
+            
+            // Disegna sezioni nelle posizioni pianificate
+            for (Posizionamento posizionamento : posizionamenti) {
                 // Calcola posizione X con margini di sicurezza
-                float columnX = MARGIN + (currentColumn * (COLUMN_WIDTH + COLUMN_GUTTER));
-                
-                // Disegna sezione con controllo anti-sovrapposizione
-                drawSectionWithBorder(contentStream, sezione, columnX, currentY);
-                
-                // Aggiorna la posizione Y con spazio di sicurezza extra
-                float newY = currentY - sectionHeight - SECTION_SPACING - 5; // 5 punti extra per sicurezza
-                if (currentColumn == 0) {
-                    leftColumnY = newY;
-                } else {
-                    rightColumnY = newY;
-                }
+                float columnX = MARGIN + (posizionamento.colonna * (COLUMN_WIDTH + COLUMN_GUTTER));
+                drawSectionWithBorder(contentStreams.get(posizionamento.pagina), caratteri, posizionamento.sezione,
+                        columnX, posizionamento.y, posizionamento.altezza, ombreggiatura);
             }
             
-            // Chiudi tutti i content stream
+            // Chiudi tutti i content stream tranne l'ultimo
+            PDPageContentStream contentStream = contentStreams.get(contentStreams.size() - 1);
             for (PDPageContentStream cs : contentStreams) {
-                if (!cs.equals(contentStream)) {
+                if (cs != contentStream) {
                     cs.close();
                 }
             }
             
             // Disegna footer solo sull'ultima pagina
-            drawFooter(contentStream, firmaImage, operatoreNome);
+            drawFooter(contentStream, caratteri, firmaImage, operatoreNome, degradazioni);
             contentStream.close();
             
+            if (!degradazioni.isEmpty()) {
+                // Traccia leggibile anche da programma delle semplificazioni applicate
+                StringBuilder livelli = new StringBuilder();
+                for (DegradazioneRendering.Livello livello : degradazioni) {
+                    livelli.append(livelli.length() > 0 ? "," : "").append(livello.name());
+                }
+                document.getDocumentInformation().setCustomMetadataValue("Degradazioni", livelli.toString());
+            }
+            
             // Aggiungi numerazione pagine
-            addPageNumbers(document, pages);
+            addPageNumbers(document, caratteri, pages);
+            
+            // Salva il documento nel buffer riutilizzabile
+            ReportOutputBuffer buffer = ReportOutputBuffer.acquisisci();
+            try {
+                if (opzioni.linearizzato) {
+                    // Font di riserva ridotti ai glifi usati: la scrittura linearizzata non passa da save
+                    caratteri.incorpora();
+                    PdfLinearizzato.scrivi(document, buffer);
+                } else {
+                    document.save(buffer);
+                }
+            } catch (IOException | RuntimeException e) {
+                buffer.rilascia();
+                throw e;
+            }
+            DegradazioneRendering.registra(stima, degradazioni, opzioni.termine,
+                    (System.nanoTime() - inizio) / 1_000_000);
+            return buffer;
+        }
+    }
+    
+    /**
+     * Disposizione storica (ordine di input): riempie la colonna corrente, passa
+     * alla destra se la sezione non entra e apre una nuova pagina altrimenti.
+     * L'ordine delle sezioni è sempre quello di input, come richiesto per gli audit.
+     */
+    private static List<Posizionamento> pianificaSequenziale(List<Sezione> cassette) throws IOException {
+        List<Posizionamento> posizionamenti = new ArrayList<>();
+        
+        // Posizione corrente per il contenuto con allineamento migliorato
+        float currentY = INIZIO_CONTENUTO_Y;
+        int currentColumn = 0; // 0 = sinistra, 1 = destra
+        int currentPage = 0;
+        float leftColumnY = currentY;
+        float rightColumnY = currentY;
+        
+        for (Sezione sezione : cassette) {
+            float sectionHeight = calculateSectionHeight(sezione);
             
-            // Salva il documento
-            document.save(outputPdf.toFile());
+            // Determina quale colonna usare (quella con più spazio disponibile)
+            if (currentColumn == 0 || leftColumnY >= rightColumnY) {
+                currentColumn = 0;
+                currentY = leftColumnY;
+            } else {
+                currentColumn = 1;
+                currentY = rightColumnY;
+            }
+            
+            // Se non c'è abbastanza spazio, prova l'altra colonna o nuova pagina
+            if (!entraInColonna(currentY, sectionHeight)) {
+                if (currentColumn == 0 && entraInColonna(rightColumnY, sectionHeight)) {
+                    // Prova la seconda colonna
+                    currentColumn = 1;
+                    currentY = rightColumnY;
+                } else {
+                    // Nuova pagina necessaria
+                    currentPage++;
+                    currentY = INIZIO_CONTENUTO_Y;
+                    leftColumnY = currentY;
+                    rightColumnY = currentY;
+                    currentColumn = 0;
+                }
+            }
+            
+            posizionamenti.add(new Posizionamento(sezione, currentPage, currentColumn, currentY, sectionHeight));
+            
+            float newY = yDopoSezione(currentY, sectionHeight);
+            if (currentColumn == 0) {
+                leftColumnY = newY;
+            } else {
+                rightColumnY = newY;
+            }
         }
+        
+        return posizionamenti;
     }
     
-    private static void drawHeader(PDPageContentStream contentStream, PDImageXObject logoImage, 
+    /**
+     * Disposizione compatta: first-fit decreasing sulle colonne di tutte le pagine
+     * aperte. Le sezioni più alte vengono collocate per prime nella prima colonna
+     * (pagina per pagina, sinistra prima di destra) che ha spazio sufficiente; a
+     * parità di altezza vale l'ordine di input, quindi il risultato è deterministico.
+     * All'interno di ogni colonna le sezioni sono poi riordinate secondo l'input.
+     * Le altezze sono quelle effettivamente disegnate ({@link #altezzaTabella}).
+     */
+    private static List<Posizionamento> pianificaCompatta(List<Sezione> cassette) throws IOException {
+        int numeroSezioni = cassette.size();
+        float[] altezze = new float[numeroSezioni];
+        List<Integer> ordine = new ArrayList<>(numeroSezioni);
+        for (int i = 0; i < numeroSezioni; i++) {
+            altezze[i] = altezzaTabella(cassette.get(i));
+            ordine.add(i);
+        }
+        ordine.sort((i1, i2) -> {
+            int confronto = Float.compare(altezze[i2], altezze[i1]);
+            return confronto != 0 ? confronto : Integer.compare(i1, i2);
+        });
+        
+        // Colonne aperte: indice 2 * pagina + colonna
+        List<Float> yLibera = new ArrayList<>();
+        List<List<Integer>> contenuto = new ArrayList<>();
+        
+        for (int indice : ordine) {
+            float altezza = altezze[indice];
+            int colonnaScelta = -1;
+            for (int c = 0; c < yLibera.size(); c++) {
+                if (entraInColonna(yLibera.get(c), altezza)) {
+                    colonnaScelta = c;
+                    break;
+                }
+            }
+            if (colonnaScelta < 0) {
+                // Nuova pagina: la sezione va nella colonna sinistra anche se più alta dello spazio utile
+                colonnaScelta = yLibera.size();
+                for (int c = 0; c < 2; c++) {
+                    yLibera.add(INIZIO_CONTENUTO_Y);
+                    contenuto.add(new ArrayList<>());
+                }
+            }
+            yLibera.set(colonnaScelta, yDopoSezione(yLibera.get(colonnaScelta), altezza));
+            contenuto.get(colonnaScelta).add(indice);
+        }
+        
+        List<Posizionamento> posizionamenti = new ArrayList<>(numeroSezioni);
+        for (int c = 0; c < contenuto.size(); c++) {
+            List<Integer> indici = contenuto.get(c);
+            indici.sort(null);
+            float y = INIZIO_CONTENUTO_Y;
+            for (int indice : indici) {
+                posizionamenti.add(new Posizionamento(cassette.get(indice), c / 2, c % 2, y, altezze[indice]));
+                y = yDopoSezione(y, altezze[indice]);
+            }
+        }
+        return posizionamenti;
+    }
+    
+    // Controllo spazio disponibile per evitare sovrapposizioni
+    private static boolean entraInColonna(float y, float sectionHeight) {
+        return y - MARGIN - FOOTER_HEIGHT >= sectionHeight + MIN_SECTION_HEIGHT;
+    }
+    
+    // Aggiorna la posizione Y con spazio di sicurezza extra (5 punti)
+    private static float yDopoSezione(float y, float sectionHeight) {
+        return y - sectionHeight - SECTION_SPACING - 5;
+    }
+    
+    /**
+     * Carica un'immagine se disponibile. Con IMMAGINI_RIDOTTE viene ricampionata al
+     * doppio della dimensione di stampa, con SENZA_IMMAGINI non viene caricata e al
+     * suo posto resta il segnaposto.
+     */
+    private static PDImageXObject caricaImmagine(Path file, PDDocument document,
+                                                 EnumSet<DegradazioneRendering.Livello> degradazioni,
+                                                 float maxWidth, float maxHeight) throws IOException {
+        if (file == null || !Files.exists(file) || degradazioni.contains(DegradazioneRendering.Livello.SENZA_IMMAGINI)) {
+            return null;
+        }
+        if (degradazioni.contains(DegradazioneRendering.Livello.IMMAGINI_RIDOTTE)) {
+            BufferedImage originale = ImageIO.read(file.toFile());
+            if (originale != null) {
+                float[] dimensioni = calculateScaledDimensions(originale.getWidth(), originale.getHeight(),
+                        maxWidth * 2, maxHeight * 2);
+                int larghezza = Math.max(1, Math.round(dimensioni[0]));
+                int altezza = Math.max(1, Math.round(dimensioni[1]));
+                if (larghezza < originale.getWidth()) {
+                    BufferedImage ridotta = new BufferedImage(larghezza, altezza, originale.getColorModel().hasAlpha()
+                            ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                    Graphics2D grafica = ridotta.createGraphics();
+                    grafica.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    grafica.drawImage(originale, 0, 0, larghezza, altezza, null);
+                    grafica.dispose();
+                    originale = ridotta;
+                }
+                return LosslessFactory.createFromImage(document, originale);
+            }
+        }
+        return PDImageXObject.createFromFile(file.toString(), document);
+    }
+    
+    /**
+     * Formatta la data in italiano esteso (es. "Lunedì 3 marzo 2025").
+     */
+    static String formattaData(LocalDate data) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("EEEE d MMMM uuuu", Locale.ITALIAN);
+        String dataFormattata = data.format(formatter);
+        // Capitalizza la prima lettera
+        return dataFormattata.substring(0, 1).toUpperCase() + dataFormattata.substring(1);
+    }
+    
+    private static void drawHeader(PDPageContentStream contentStream, CaratteriUnicode caratteri, PDImageXObject logoImage, 
                                  String sede, String dataFormattata, String operatoreNome, String revisione) throws IOException {
         
         float headerY = PAGE_HEIGHT - MARGIN;
@@ -488,55 +828,55 @@ public class ReportGenerator {
         // Revisione in alto a destra
         if (revisione != null && !revisione.isEmpty()) {
             contentStream.beginText();
-            contentStream.setFont(FONT_REGULAR, HEADER_FONT_SIZE);
-            float revisionWidth = FONT_REGULAR.getStringWidth(revisione) / 1000 * HEADER_FONT_SIZE;
+            caratteri.imposta(contentStream, FontStandard.REGULAR, HEADER_FONT_SIZE);
+            float revisionWidth = CaratteriUnicode.larghezza(FontStandard.REGULAR, revisione, HEADER_FONT_SIZE);
             contentStream.newLineAtOffset(PAGE_WIDTH - MARGIN - revisionWidth, headerY - 10);
-            contentStream.showText(revisione);
+            caratteri.mostra(contentStream, revisione);
             contentStream.endText();
         }
         
         // Titolo principale centrato - conforme D.M. 388/2003
         contentStream.beginText();
-        contentStream.setFont(FONT_BOLD, TITLE_FONT_SIZE);
+        caratteri.imposta(contentStream, FontStandard.BOLD, TITLE_FONT_SIZE);
         
         // Prima riga del titolo
         String titoloPrimaRiga = "CHECK VERIFICA CONTENUTO MINIMO";
-        float titoloPrimaRigaWidth = FONT_BOLD.getStringWidth(titoloPrimaRiga) / 1000 * TITLE_FONT_SIZE;
+        float titoloPrimaRigaWidth = CaratteriUnicode.larghezza(FontStandard.BOLD, titoloPrimaRiga, TITLE_FONT_SIZE);
         contentStream.newLineAtOffset((PAGE_WIDTH - titoloPrimaRigaWidth) / 2, headerY - 18);
-        contentStream.showText(titoloPrimaRiga);
+        caratteri.mostra(contentStream, titoloPrimaRiga);
         
         // Seconda riga del titolo
         String titoloSecondaRiga = "CASSETTA DI PRIMO SOCCORSO";
-        float titoloSecondaRigaWidth = FONT_BOLD.getStringWidth(titoloSecondaRiga) / 1000 * TITLE_FONT_SIZE;
+        float titoloSecondaRigaWidth = CaratteriUnicode.larghezza(FontStandard.BOLD, titoloSecondaRiga, TITLE_FONT_SIZE);
         contentStream.newLineAtOffset((PAGE_WIDTH - titoloSecondaRigaWidth) / 2 - (PAGE_WIDTH - titoloPrimaRigaWidth) / 2, -18);
-        contentStream.showText(titoloSecondaRiga);
+        caratteri.mostra(contentStream, titoloSecondaRiga);
         contentStream.endText();
         
         // Sottotitolo esplicativo - riferimento normativo
         contentStream.beginText();
-        contentStream.setFont(FONT_REGULAR, HEADER_FONT_SIZE - 1);
+        caratteri.imposta(contentStream, FontStandard.REGULAR, HEADER_FONT_SIZE - 1);
         String sottotitolo = "Il presente modulo è utilizzato per verificare il contenuto minimo delle cassette di primo soccorso,";
         String sottotitolo2 = "come indicato dal D.M. 388/2003, installate presso l'azienda ISOKIT Srl.";
         
-        float sottotitoloWidth = FONT_REGULAR.getStringWidth(sottotitolo) / 1000 * (HEADER_FONT_SIZE - 1);
-        float sottotitolo2Width = FONT_REGULAR.getStringWidth(sottotitolo2) / 1000 * (HEADER_FONT_SIZE - 1);
+        float sottotitoloWidth = CaratteriUnicode.larghezza(FontStandard.REGULAR, sottotitolo, HEADER_FONT_SIZE - 1);
+        float sottotitolo2Width = CaratteriUnicode.larghezza(FontStandard.REGULAR, sottotitolo2, HEADER_FONT_SIZE - 1);
         
         contentStream.newLineAtOffset((PAGE_WIDTH - sottotitoloWidth) / 2, headerY - 32);
-        contentStream.showText(sottotitolo);
+        caratteri.mostra(contentStream, sottotitolo);
         contentStream.newLineAtOffset((PAGE_WIDTH - sottotitolo2Width) / 2 - (PAGE_WIDTH - sottotitoloWidth) / 2, -12);
-        contentStream.showText(sottotitolo2);
+        caratteri.mostra(contentStream, sottotitolo2);
         contentStream.endText();
         
         // Informazioni a destra
         contentStream.beginText();
-        contentStream.setFont(FONT_REGULAR, HEADER_FONT_SIZE);
+        caratteri.imposta(contentStream, FontStandard.REGULAR, HEADER_FONT_SIZE);
         float rightX = PAGE_WIDTH - MARGIN - 150;
         contentStream.newLineAtOffset(rightX, headerY - 52);
-        contentStream.showText("Sede: " + sede);
+        caratteri.mostra(contentStream, "Sede: " + sede);
         contentStream.newLineAtOffset(0, -12);
-        contentStream.showText("Data: " + dataFormattata);
+        caratteri.mostra(contentStream, "Data: " + dataFormattata);
         contentStream.newLineAtOffset(0, -12);
-        contentStream.showText("Operatore: " + operatoreNome);
+        caratteri.mostra(contentStream, "Operatore: " + operatoreNome);
         contentStream.endText();
         
         // Linea di separazione
@@ -546,17 +886,33 @@ public class ReportGenerator {
         contentStream.stroke();
     }
     
-    private static void drawFooter(PDPageContentStream contentStream, PDImageXObject firmaImage, 
-                                 String operatoreNome) throws IOException {
+    private static void drawFooter(PDPageContentStream contentStream, CaratteriUnicode caratteri, PDImageXObject firmaImage, 
+                                 String operatoreNome, EnumSet<DegradazioneRendering.Livello> degradazioni) throws IOException {
         
         float footerY = MARGIN + FOOTER_HEIGHT;
         float rightX = PAGE_WIDTH - MARGIN - 200;
         
+        // Nota sulle semplificazioni applicate per rispettare il tempo massimo
+        if (!degradazioni.isEmpty()) {
+            contentStream.beginText();
+            caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE - 2);
+            contentStream.setNonStrokingColor(Color.DARK_GRAY);
+            contentStream.newLineAtOffset(MARGIN, footerY);
+            caratteri.mostra(contentStream, "Rapporto semplificato per limiti di tempo:");
+            for (String riga : wrapText(DegradazioneRendering.descrivi(degradazioni),
+                    rightX - MARGIN, FontStandard.REGULAR, CONTENT_FONT_SIZE - 2)) {
+                contentStream.newLineAtOffset(0, -10);
+                caratteri.mostra(contentStream, riga);
+            }
+            contentStream.endText();
+            contentStream.setNonStrokingColor(Color.BLACK);
+        }
+        
         // Etichetta "Firma operatore"
         contentStream.beginText();
-        contentStream.setFont(FONT_REGULAR, CONTENT_FONT_SIZE);
+        caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
         contentStream.newLineAtOffset(rightX, footerY);
-        contentStream.showText("Firma operatore:");
+        caratteri.mostra(contentStream, "Firma operatore:");
         contentStream.endText();
         
         // Firma o linea
@@ -574,16 +930,14 @@ public class ReportGenerator {
         
         // Nome operatore sotto la firma
         contentStream.beginText();
-        contentStream.setFont(FONT_REGULAR, CONTENT_FONT_SIZE);
+        caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
         contentStream.newLineAtOffset(rightX, footerY - 65);
-        contentStream.showText(operatoreNome);
+        caratteri.mostra(contentStream, operatoreNome);
         contentStream.endText();
     }
     
-    private static void drawSectionWithBorder(PDPageContentStream contentStream, Sezione sezione, 
-                                            float x, float y) throws IOException {
-        
-        float sectionHeight = calculateSectionHeight(sezione);
+    private static void drawSectionWithBorder(PDPageContentStream contentStream, CaratteriUnicode caratteri, Sezione sezione, 
+                                            float x, float y, float sectionHeight, boolean ombreggiatura) throws IOException {
         
         // Disegna bordo sottile attorno alla sezione per migliore organizzazione
         contentStream.setStrokingColor(new Color(200, 200, 200));
@@ -600,11 +954,11 @@ public class ReportGenerator {
         contentStream.setNonStrokingColor(Color.BLACK);
         
         // Disegna il contenuto della sezione in formato tabellare
-        drawSectionAsTable(contentStream, sezione, x, y);
+        drawSectionAsTable(contentStream, caratteri, sezione, x, y, ombreggiatura);
     }
     
-    private static void drawSectionAsTable(PDPageContentStream contentStream, Sezione sezione, 
-                                         float x, float y) throws IOException {
+    private static void drawSectionAsTable(PDPageContentStream contentStream, CaratteriUnicode caratteri, Sezione sezione, 
+                                         float x, float y, boolean ombreggiatura) throws IOException {
         float currentY = y;
         
         // Disegna il riquadro testata kit
@@ -615,13 +969,23 @@ public class ReportGenerator {
         
         // Testo testata kit
         contentStream.beginText();
-        contentStream.setFont(FONT_BOLD, SECTION_FONT_SIZE);
+        caratteri.imposta(contentStream, FontStandard.BOLD, SECTION_FONT_SIZE);
         contentStream.newLineAtOffset(x + 5, currentY - 12);
-        contentStream.showText(sezione.getTestataKit());
+        caratteri.mostra(contentStream, sezione.getTestataKit());
         contentStream.endText();
         
         currentY -= 22;
         
+        // Kit conforme riassunto: una sola riga al posto della tabella
+        if (sezione instanceof SezioneRiassunta) {
+            contentStream.beginText();
+            caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
+            contentStream.newLineAtOffset(x + 5, currentY - 10);
+            caratteri.mostra(contentStream, ((SezioneRiassunta) sezione).getRigaRiepilogo());
+            contentStream.endText();
+            return;
+        }
+        
         // Header tabella materiali
         String[] headers = {"Codice", "Nome", "Lotto/Ser.", "Scadenza", "Gg.Scad.", "Qta", "Min", "Max", "Stato"};
         float[] columnWidths = {60, 150, 80, 80, 60, 40, 40, 40, 80};
@@ -640,12 +1004,12 @@ public class ReportGenerator {
         // Testo header
         contentStream.setNonStrokingColor(Color.BLACK);
         contentStream.beginText();
-        contentStream.setFont(FONT_BOLD, CONTENT_FONT_SIZE);
+        caratteri.imposta(contentStream, FontStandard.BOLD, CONTENT_FONT_SIZE);
         
         float currentX = headerX + 2;
         for (int i = 0; i < headers.length; i++) {
             contentStream.newLineAtOffset(currentX - (i == 0 ? 0 : currentX), headerY - 12);
-            contentStream.showText(headers[i]);
+            caratteri.mostra(contentStream, headers[i]);
             currentX += columnWidths[i];
         }
         contentStream.endText();
@@ -693,15 +1057,17 @@ public class ReportGenerator {
                     break;
             }
             
-            // Background riga
-            contentStream.setNonStrokingColor(backgroundColor);
-            contentStream.addRect(headerX, currentY, CONTENT_WIDTH, 13);
-            contentStream.fill();
+            // Background riga (lo stato resta comunque leggibile nell'ultima colonna)
+            if (ombreggiatura) {
+                contentStream.setNonStrokingColor(backgroundColor);
+                contentStream.addRect(headerX, currentY, CONTENT_WIDTH, 13);
+                contentStream.fill();
+            }
             
             // Testo riga
             contentStream.setNonStrokingColor(Color.BLACK);
             contentStream.beginText();
-            contentStream.setFont(FONT_REGULAR, CONTENT_FONT_SIZE);
+            caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
             
             currentX = headerX + 2;
             String[] values = {
@@ -718,7 +1084,7 @@ public class ReportGenerator {
             
             for (int i = 0; i < values.length; i++) {
                 contentStream.newLineAtOffset(currentX - (i == 0 ? 0 : currentX), currentY + 3);
-                contentStream.showText(values[i]);
+                caratteri.mostra(contentStream, values[i]);
                 currentX += columnWidths[i];
             }
             contentStream.endText();
@@ -746,26 +1112,24 @@ public class ReportGenerator {
         contentStream.stroke();
         
         // Aggiungi articoli in quarantena/richiamo separatamente se presenti
-        List<Articolo> articoliBloccati = sezione.articoli.stream()
-            .filter(a -> a.inQuarantena || a.inRichiamo)
-            .collect(java.util.stream.Collectors.toList());
+        List<Articolo> articoliBloccati = sezione.getArticoliBloccati();
             
         if (!articoliBloccati.isEmpty()) {
             currentY -= 25;
             contentStream.beginText();
-            contentStream.setFont(FONT_BOLD, CONTENT_FONT_SIZE);
+            caratteri.imposta(contentStream, FontStandard.BOLD, CONTENT_FONT_SIZE);
             contentStream.setNonStrokingColor(Color.RED);
             contentStream.newLineAtOffset(x, currentY);
-            contentStream.showText("ARTICOLI BLOCCATI (Quarantena/Richiamo):");
+            caratteri.mostra(contentStream, "ARTICOLI BLOCCATI (Quarantena/Richiamo):");
             contentStream.endText();
             
             for (Articolo articolo : articoliBloccati) {
                 currentY -= 15;
                 contentStream.beginText();
-                contentStream.setFont(FONT_REGULAR, CONTENT_FONT_SIZE);
+                caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
                 contentStream.setNonStrokingColor(Color.RED);
                 contentStream.newLineAtOffset(x + 10, currentY);
-                contentStream.showText("• " + articolo.nome + " - " + articolo.stato);
+                caratteri.mostra(contentStream, "• " + articolo.nome + " - " + articolo.stato);
                 contentStream.endText();
             }
         }
@@ -797,13 +1161,33 @@ public class ReportGenerator {
         float height = TITLE_SPACING + 8; // Titolo + linea sotto
         
         for (String riga : sezione.righe) {
-            List<String> wrappedLines = wrapText(riga, COLUMN_WIDTH - BULLET_INDENT - 20, FONT_REGULAR, CONTENT_FONT_SIZE);
+            List<String> wrappedLines = wrapText(riga, COLUMN_WIDTH - BULLET_INDENT - 20, FontStandard.REGULAR, CONTENT_FONT_SIZE);
             height += wrappedLines.size() * ITEM_SPACING;
         }
         
         return height + SECTION_SPACING + 16; // Spazio finale + padding per bordo
     }
     
+    /**
+     * Altezza della sezione come la disegna {@link #drawSectionAsTable}: testata kit,
+     * intestazione e righe della tabella (o la riga di riepilogo dei kit riassunti),
+     * elenco degli articoli bloccati, più il margine del bordo. Usata dalla
+     * disposizione compatta; la sequenziale mantiene la stima storica.
+     */
+    private static float altezzaTabella(Sezione sezione) {
+        float height = ALTEZZA_TESTATA_KIT;
+        if (sezione instanceof SezioneRiassunta) {
+            height += ALTEZZA_RIGA_TABELLA;
+        } else {
+            height += ALTEZZA_RIGA_TABELLA * (1 + sezione.getArticoliOrdinatiPerFEFO().size());
+            int bloccati = sezione.getArticoliBloccati().size();
+            if (bloccati > 0) {
+                height += 25 + 15 * bloccati + DISCENDENTE_TESTO;
+            }
+        }
+        return height + 16; // Padding per il bordo (8 sopra e 8 sotto)
+    }
+    
     private static List<String> wrapText(String text, float maxWidth, PDType1Font font, float fontSize) throws IOException {
         List<String> lines = new ArrayList<>();
         String[] words = text.split(" ");
@@ -813,7 +1197,7 @@ public class ReportGenerator {
             String testLine = currentLine.length() == 0 ? word : currentLine + " " + word;
             
             // Calcola larghezza considerando margini di sicurezza per evitare sovrapposizioni
-            float textWidth = font.getStringWidth(testLine) / 1000 * fontSize;
+            float textWidth = CaratteriUnicode.larghezza(font, testLine, fontSize);
             
             if (textWidth <= maxWidth - 15) { // 15 punti di margine di sicurezza
                 currentLine = new StringBuilder(testLine);
@@ -844,7 +1228,7 @@ public class ReportGenerator {
         return new float[]{originalWidth * scale, originalHeight * scale};
     }
     
-    private static void addPageNumbers(PDDocument document, List<PDPage> pages) throws IOException {
+    private static void addPageNumbers(PDDocument document, CaratteriUnicode caratteri, List<PDPage> pages) throws IOException {
         int totalPages = pages.size();
         java.time.LocalDateTime adesso = java.time.LocalDateTime.now();
         String dataOraGenerazione = adesso.format(DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm"));
@@ -856,19 +1240,19 @@ public class ReportGenerator {
                 
                 // Numero pagina centrato
                 String pageText = "Pagina " + (i + 1) + " di " + totalPages;
-                float textWidth = FONT_REGULAR.getStringWidth(pageText) / 1000 * CONTENT_FONT_SIZE;
+                float textWidth = CaratteriUnicode.larghezza(FontStandard.REGULAR, pageText, CONTENT_FONT_SIZE);
                 
                 contentStream.beginText();
-                contentStream.setFont(FONT_REGULAR, CONTENT_FONT_SIZE);
+                caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
                 contentStream.newLineAtOffset((PAGE_WIDTH - textWidth) / 2, MARGIN / 2);
-                contentStream.showText(pageText);
+                caratteri.mostra(contentStream, pageText);
                 contentStream.endText();
                 
                 // Data/ora generazione a sinistra
                 contentStream.beginText();
-                contentStream.setFont(FONT_REGULAR, CONTENT_FONT_SIZE);
+                caratteri.imposta(contentStream, FontStandard.REGULAR, CONTENT_FONT_SIZE);
                 contentStream.newLineAtOffset(MARGIN, MARGIN / 2);
-                contentStream.showText("Generato: " + dataOraGenerazione);
+                caratteri.mostra(contentStream, "Generato: " + dataOraGenerazione);
                 contentStream.endText();
             }
         }
@@ -876,34 +1260,87 @@ public class ReportGenerator {
     
     public static void main(String[] args) {
         try {
+            Map<String, String> opzioni = new HashMap<>();
+            args = estraiOpzioni(args, opzioni);
+            
+            if (opzioni.containsKey("font") || opzioni.containsKey("font-grassetto")) {
+                CaratteriUnicode.configura(percorsi(opzioni.get("font")), percorsi(opzioni.get("font-grassetto")));
+            }
+            
+            if (opzioni.containsKey("worker")) {
+                eseguiWorker(opzioni);
+                return;
+            }
+            
+            if (opzioni.containsKey("watch")) {
+                eseguiWatch(opzioni);
+                return;
+            }
+            
+            if (opzioni.containsKey("storia") || opzioni.containsKey("compatta")) {
+                interrogaStorico(opzioni);
+                return;
+            }
+            
+            if (opzioni.containsKey("aggrega")) {
+                aggregaInventari(args);
+                return;
+            }
+            
+            if (opzioni.containsKey("zip")) {
+                esportaZip(args, opzioni);
+                return;
+            }
+            
             if (args.length < 4) {
-                System.err.println("❌ Parametri insufficienti. Uso: java ReportGenerator <operatore> <kits> <sede> <revisione> [<firma>] [<logo>]");
+                System.err.println("❌ Parametri insufficienti. Uso: java ReportGenerator [--stdout] [--formato=pdf|json|csv|html] [--impaginazione=sequenziale|compatta] [--entro=ms] [--linearizzato] [--font=<ttf,...>] [--font-grassetto=<ttf,...>] [--storico=<dir>] [--accoda=<dir>] <operatore> <kits> <sede> <revisione> [<firma>] [<logo>]");
+                System.err.println("   oppure: java ReportGenerator --worker=<dir> [--thread=N] [--lease=secondi] [--tentativi=N] [--attesa-condivisa=secondi] [--memoria-frazione=0.7] [--coda-risorse=N] [--attesa-risorse=secondi] [--metriche=<porta>] [--storico=<dir>] [--esci-se-vuota]");
+                System.err.println("   oppure: java ReportGenerator --watch=<dir inventari> [--output=<dir>] [--thread=N] [--debounce=ms] [--storico=<dir>]");
+                System.err.println("   oppure: java ReportGenerator --storico=<dir> --storia=<kit> [--sede=<sede>] [--da=aaaa-mm-gg] [--a=aaaa-mm-gg] [--sotto-soglia]");
+                System.err.println("   oppure: java ReportGenerator --storico=<dir> --compatta");
+                System.err.println("   oppure: java ReportGenerator --aggrega <richiesta.properties>...");
+                System.err.println("   oppure: java ReportGenerator --zip=<archivio.zip> [--stdout] [--thread=N] <richiesta.properties>...");
                 System.exit(1);
             }
             
-            String operatoreNome = args[0];
-            String kitsData = args[1];
-            String sede = args[2];
-            String revisione = args[3];
-            String firmaPath = args.length > 4 ? args[4] : "";
-            String logoPath = args.length > 5 ? args[5] : "";
-            
-            // Parse dei dati dei kit dal formato stringa
-            List<Sezione> cassette = parseKitsData(kitsData);
-            
-            // Genera il rapporto
-            generate(
-                Paths.get("rapporto_cassette.pdf"),
-                logoPath.isEmpty() ? null : Paths.get(logoPath),
-                sede,
-                operatoreNome,
-                firmaPath.isEmpty() ? null : Paths.get(firmaPath),
-                LocalDate.now(),
-                cassette,
-                revisione
-            );
+            RichiestaReport richiesta = RichiestaReport.daArgomenti(args);
+            richiesta.formato = opzioni.getOrDefault("formato", "pdf");
+            richiesta.impaginazione = ModalitaImpaginazione.daNome(opzioni.get("impaginazione"));
+            richiesta.linearizzato = opzioni.containsKey("linearizzato");
+            if (opzioni.containsKey("entro")) {
+                // Il tempo massimo del chiamante comprende l'avvio della JVM
+                Instant avvio = ProcessHandle.current().info().startInstant().orElse(Instant.now());
+                richiesta.termine = avvio.plusMillis(Long.parseLong(opzioni.get("entro")));
+            }
+            
+            if (opzioni.containsKey("accoda")) {
+                // Solo inserimento in coda: il rapporto verrà generato da un worker
+                String id = apriCoda(opzioni.get("accoda"), opzioni).accoda(richiesta);
+                System.out.println(id);
+                return;
+            }
             
-            System.out.println("✅ Rapporto generato con successo: rapporto_cassette.pdf");
+            ReportOutputBuffer buffer = richiesta.renderizza();
+            try {
+                if (opzioni.containsKey("stdout")) {
+                    // Consegna su stdout: i messaggi vanno su stderr per non sporcare l'output
+                    buffer.trasferisci(new FileOutputStream(FileDescriptor.out).getChannel());
+                    System.err.println("✅ Rapporto generato con successo su stdout");
+                } else {
+                    Path output = Paths.get("rapporto_cassette." + richiesta.estensione());
+                    salvaSuFile(buffer, output);
+                    System.out.println("✅ Rapporto generato con successo: " + output);
+                }
+            } finally {
+                buffer.rilascia();
+            }
+            if (opzioni.containsKey("storico")) {
+                registraStorico(Paths.get(opzioni.get("storico")), richiesta);
+            }
+            String degradazioni = riepilogoDegradazioni();
+            if (!degradazioni.isEmpty()) {
+                System.err.println("⚠️ Rapporto semplificato per rispettare il tempo massimo: " + degradazioni);
+            }
             
         } catch (Exception e) {
             System.err.println("❌ Errore durante la generazione del rapporto: " + e.getMessage());
@@ -912,7 +1349,220 @@ public class ReportGenerator {
         }
     }
     
-    private static List<Sezione> parseKitsData(String kitsData) {
+    private static void eseguiWorker(Map<String, String> opzioni) throws IOException, InterruptedException {
+        CodaReport coda = apriCoda(opzioni.get("worker"), opzioni);
+        int thread = Integer.parseInt(opzioni.getOrDefault("thread",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        // Attesa massima sul risultato di un lavoro identico in corso: per default la durata del lease
+        Duration attesa = opzioni.containsKey("attesa-condivisa")
+                ? Duration.ofSeconds(Long.parseLong(opzioni.get("attesa-condivisa")))
+                : coda.getDurataLease();
+        // Ammissione dei lavori in base ai limiti del container (cgroup) invece che all'host
+        GovernatoreRisorse.Limiti limiti = GovernatoreRisorse.Limiti.leggi();
+        GovernatoreRisorse governatore = new GovernatoreRisorse(limiti,
+                Double.parseDouble(opzioni.getOrDefault("memoria-frazione", String.valueOf(GovernatoreRisorse.FRAZIONE_PREDEFINITA))),
+                Integer.parseInt(opzioni.getOrDefault("coda-risorse", String.valueOf(GovernatoreRisorse.CODA_PREDEFINITA))),
+                opzioni.containsKey("attesa-risorse")
+                        ? Duration.ofSeconds(Long.parseLong(opzioni.get("attesa-risorse")))
+                        : GovernatoreRisorse.ATTESA_PREDEFINITA);
+        ReportWorker worker = new ReportWorker(coda, thread, attesa, governatore);
+        StoricoInventario storico = apriStorico(opzioni);
+        worker.setStorico(storico);
+        HttpServer metriche = opzioni.containsKey("metriche")
+                ? avviaMetriche(Integer.parseInt(opzioni.get("metriche")), worker)
+                : null;
+        System.out.println("🚀 Worker avviato sulla coda " + opzioni.get("worker") + " con " + thread + " thread");
+        System.out.println("📏 Limiti: " + limiti + " -> budget " + (governatore.getBudget() >> 20) + " MB, "
+                + governatore.getConcorrenzaMassima() + " generazioni contemporanee");
+        try {
+            worker.esegui(opzioni.containsKey("esci-se-vuota"));
+        } finally {
+            if (metriche != null) {
+                metriche.stop(0);
+            }
+            if (storico != null) {
+                storico.close();
+            }
+        }
+        System.out.println("✅ Worker terminato: " + worker.getCompletati() + " completati, "
+                + worker.getFalliti() + " errori, " + worker.getCondivisi() + " risultati condivisi, "
+                + worker.getRestituiti() + " rimessi in coda per mancanza di risorse");
+        if (DegradazioneRendering.getGenerazioniConTermine() > 0) {
+            System.out.println("⏱️ Generazioni con tempo massimo: " + DegradazioneRendering.getGenerazioniConTermine()
+                    + " (oltre il termine: " + DegradazioneRendering.getTerminiSuperati() + ")"
+                    + (riepilogoDegradazioni().isEmpty() ? "" : ", degradazioni: " + riepilogoDegradazioni()));
+        }
+    }
+    
+    // Espone le metriche del worker in formato Prometheus su http://<host>:<porta>/metrics
+    private static HttpServer avviaMetriche(int porta, ReportWorker worker) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(porta), 0);
+        server.createContext("/metrics", scambio -> {
+            byte[] corpo = worker.metriche().getBytes(StandardCharsets.UTF_8);
+            scambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            scambio.sendResponseHeaders(200, corpo.length);
+            try (OutputStream uscita = scambio.getResponseBody()) {
+                uscita.write(corpo);
+            }
+        });
+        server.start();
+        System.out.println("📈 Metriche su http://localhost:" + porta + "/metrics");
+        return server;
+    }
+    
+    // Conteggio delle degradazioni applicate finora, es. "immagini omesse x2, kit conformi riassunti x1"
+    private static String riepilogoDegradazioni() {
+        StringBuilder riepilogo = new StringBuilder();
+        for (Map.Entry<DegradazioneRendering.Livello, Long> voce : DegradazioneRendering.getApplicazioni().entrySet()) {
+            if (voce.getValue() > 0) {
+                riepilogo.append(riepilogo.length() > 0 ? ", " : "")
+                        .append(voce.getKey().descrizione).append(" x").append(voce.getValue());
+            }
+        }
+        return riepilogo.toString();
+    }
+    
+    private static void eseguiWatch(Map<String, String> opzioni) throws IOException, InterruptedException {
+        Path directoryInventario = Paths.get(opzioni.get("watch"));
+        Path directoryOutput = Paths.get(opzioni.getOrDefault("output", "rapporti"));
+        int thread = Integer.parseInt(opzioni.getOrDefault("thread",
+                String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        long debounce = Long.parseLong(opzioni.getOrDefault("debounce", "500"));
+        
+        ReportWatcher watcher = new ReportWatcher(directoryInventario, directoryOutput, thread, debounce);
+        StoricoInventario storico = apriStorico(opzioni);
+        watcher.setStorico(storico);
+        Runtime.getRuntime().addShutdownHook(new Thread(watcher::ferma));
+        System.out.println("👀 In osservazione: " + directoryInventario + " -> " + directoryOutput);
+        try {
+            watcher.esegui();
+        } finally {
+            if (storico != null) {
+                storico.close();
+            }
+        }
+    }
+    
+    // Elenco di file separati da virgola; null se l'opzione manca
+    private static List<Path> percorsi(String elenco) {
+        if (elenco == null) {
+            return null;
+        }
+        List<Path> percorsi = new ArrayList<>();
+        for (String percorso : elenco.split(",")) {
+            if (!percorso.trim().isEmpty()) {
+                percorsi.add(Paths.get(percorso.trim()));
+            }
+        }
+        return percorsi;
+    }
+    
+    // Il rapporto è già consegnato: un errore dello storico non lo fa scartare al chiamante
+    private static void registraStorico(Path directory, RichiestaReport richiesta) {
+        try (StoricoInventario storico = StoricoInventario.apri(directory, ATTESA_STORICO)) {
+            storico.registra(richiesta);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠️ Impossibile aggiornare lo storico: " + e.getMessage());
+        }
+    }
+    
+    private static StoricoInventario apriStorico(Map<String, String> opzioni) throws IOException {
+        return opzioni.containsKey("storico") ? StoricoInventario.apri(Paths.get(opzioni.get("storico"))) : null;
+    }
+    
+    private static void interrogaStorico(Map<String, String> opzioni) throws IOException {
+        if (!opzioni.containsKey("storico")) {
+            throw new IllegalArgumentException("Directory dello storico non indicata (--storico=<dir>)");
+        }
+        try (StoricoInventario storico = StoricoInventario.apri(Paths.get(opzioni.get("storico")))) {
+            if (opzioni.containsKey("compatta")) {
+                boolean compattato = storico.compatta(StoricoInventario.FINESTRA_DETTAGLIO);
+                System.out.println(compattato
+                        ? "✅ Storico compattato: " + storico.getNumeroSegmenti() + " segmenti"
+                        : "ℹ️ Nessun segmento da compattare");
+                return;
+            }
+            // Le date sono intese come giorni interi nel fuso locale, estremo finale incluso
+            Instant da = opzioni.containsKey("da")
+                    ? LocalDate.parse(opzioni.get("da")).atStartOfDay(ZoneId.systemDefault()).toInstant() : null;
+            Instant a = opzioni.containsKey("a")
+                    ? LocalDate.parse(opzioni.get("a")).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant() : null;
+            String sede = opzioni.get("sede");
+            List<StoricoInventario.Evento> eventi = opzioni.containsKey("sotto-soglia")
+                    ? storico.ingressiSottoSoglia(sede, opzioni.get("storia"), da, a)
+                    : storico.storia(sede, opzioni.get("storia"), da, a);
+            StringBuilder json = new StringBuilder("[");
+            for (StoricoInventario.Evento evento : eventi) {
+                json.append(json.length() > 1 ? ",\n" : "\n").append(evento.toJson());
+            }
+            System.out.println(json.append("\n]"));
+        }
+    }
+    
+    private static void aggregaInventari(String[] fileRichieste) throws IOException {
+        // Le richieste della stessa sede vengono accorpate
+        Map<String, List<Sezione>> kitPerSede = new java.util.LinkedHashMap<>();
+        for (String file : fileRichieste) {
+            RichiestaReport richiesta = RichiestaReport.carica(Paths.get(file));
+            kitPerSede.computeIfAbsent(richiesta.sede, s -> new ArrayList<>()).addAll(richiesta.cassette());
+        }
+        AggregatoreInventario.Risultato risultato = new AggregatoreInventario()
+                .aggrega(AggregatoreInventario.Colonne.daSezioni(kitPerSede));
+        System.out.println(risultato.toJson());
+    }
+    
+    private static void esportaZip(String[] fileRichieste, Map<String, String> opzioni) throws IOException, InterruptedException {
+        List<RichiestaReport> richieste = new ArrayList<>();
+        for (String file : fileRichieste) {
+            richieste.add(RichiestaReport.carica(Paths.get(file)));
+        }
+        int thread = Integer.parseInt(opzioni.getOrDefault("thread",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        ReportZipExporter exporter = new ReportZipExporter(thread, java.util.zip.Deflater.DEFAULT_COMPRESSION);
+        
+        if (opzioni.containsKey("stdout")) {
+            int esportati = exporter.esporta(richieste, new FileOutputStream(FileDescriptor.out).getChannel());
+            System.err.println("✅ Archivio generato su stdout: " + esportati + "/" + richieste.size() + " rapporti");
+            return;
+        }
+        
+        Path archivio = Paths.get(opzioni.get("zip"));
+        try (FileChannel canale = FileChannel.open(archivio, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int esportati = exporter.esporta(richieste, canale);
+            System.out.println("✅ Archivio generato con successo: " + archivio + " (" + esportati + "/"
+                    + richieste.size() + " rapporti)");
+        }
+    }
+    
+    private static CodaReport apriCoda(String directory, Map<String, String> opzioni) throws IOException {
+        long lease = Long.parseLong(opzioni.getOrDefault("lease", "60"));
+        int tentativi = Integer.parseInt(opzioni.getOrDefault("tentativi", "3"));
+        return new CodaReport(Paths.get(directory), Duration.ofSeconds(lease), tentativi);
+    }
+    
+    /**
+     * Separa le opzioni nel formato --nome o --nome=valore dai parametri posizionali.
+     * Le opzioni senza valore vengono registrate con valore vuoto.
+     */
+    private static String[] estraiOpzioni(String[] args, Map<String, String> opzioni) {
+        List<String> posizionali = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.length() > 2) {
+                int uguale = arg.indexOf('=');
+                if (uguale > 0) {
+                    opzioni.put(arg.substring(2, uguale), arg.substring(uguale + 1));
+                } else {
+                    opzioni.put(arg.substring(2), "");
+                }
+            } else {
+                posizionali.add(arg);
+            }
+        }
+        return posizionali.toArray(new String[0]);
+    }
+    
+    static List<Sezione> parseKitsData(String kitsData) {
         List<Sezione> cassette = new ArrayList<>();
         
         if (kitsData == null || kitsData.trim().isEmpty()) {
@@ -0,0 +1,217 @@
+// ReportOutputBuffer.java
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer di uscita riutilizzabile per i PDF generati
+ *
+ * Il contenuto viene scritto in blocchi diretti di dimensione fissa presi da un pool
+ * condiviso: la crescita non ricopia mai i dati già scritti e la consegna verso un
+ * canale (file, socket, stdout) avviene con una scrittura "gathering" dei blocchi,
+ * senza passare da array intermedi.
+ *
+ * Uso tipico:
+ * ReportOutputBuffer buffer = ReportOutputBuffer.acquisisci();
+ * try {
+ *     document.save(buffer);
+ *     buffer.trasferisci(canale);
+ * } finally {
+ *     buffer.rilascia();
+ * }
+ */
+public final class ReportOutputBuffer extends OutputStream {
+
+    // Dimensionamento del pool
+    private static final int DIMENSIONE_BLOCCO = 256 * 1024;
+    private static final int MAX_BLOCCHI_IN_POOL = 64; // 16 MB complessivi al massimo
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL_BLOCCHI = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger blocchiInPool = new AtomicInteger();
+
+    // Media mobile delle dimensioni dei PDF prodotti, usata per pre-allocare i blocchi
+    private static final AtomicLong dimensioneMedia = new AtomicLong(DIMENSIONE_BLOCCO);
+
+    private final List<ByteBuffer> blocchi = new ArrayList<>();
+    private ByteBuffer corrente;
+    private int indiceCorrente;
+    private long dimensione;
+    private boolean rilasciato;
+
+    private ReportOutputBuffer() {
+    }
+
+    /**
+     * Restituisce un buffer vuoto con capacità iniziale pari alla dimensione media
+     * delle uscite precedenti.
+     */
+    public static ReportOutputBuffer acquisisci() {
+        ReportOutputBuffer buffer = new ReportOutputBuffer();
+        long stima = dimensioneMedia.get();
+        int blocchiIniziali = (int) Math.max(1, (stima + DIMENSIONE_BLOCCO - 1) / DIMENSIONE_BLOCCO);
+        for (int i = 0; i < blocchiIniziali; i++) {
+            buffer.blocchi.add(prendiBlocco());
+        }
+        buffer.corrente = buffer.blocchi.get(0);
+        return buffer;
+    }
+
+    private static ByteBuffer prendiBlocco() {
+        ByteBuffer blocco = POOL_BLOCCHI.poll();
+        if (blocco == null) {
+            return ByteBuffer.allocateDirect(DIMENSIONE_BLOCCO);
+        }
+        blocchiInPool.decrementAndGet();
+        blocco.clear();
+        return blocco;
+    }
+
+    private static void restituisciBlocco(ByteBuffer blocco) {
+        if (blocchiInPool.incrementAndGet() <= MAX_BLOCCHI_IN_POOL) {
+            POOL_BLOCCHI.offer(blocco);
+        } else {
+            // Pool pieno: il blocco viene lasciato al GC
+            blocchiInPool.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        verificaAttivo();
+        if (!corrente.hasRemaining()) {
+            avanzaBlocco();
+        }
+        corrente.put((byte) b);
+        dimensione++;
+    }
+
+    @Override
+    public void write(byte[] dati, int offset, int lunghezza) {
+        verificaAttivo();
+        while (lunghezza > 0) {
+            if (!corrente.hasRemaining()) {
+                avanzaBlocco();
+            }
+            int daScrivere = Math.min(lunghezza, corrente.remaining());
+            corrente.put(dati, offset, daScrivere);
+            offset += daScrivere;
+            lunghezza -= daScrivere;
+            dimensione += daScrivere;
+        }
+    }
+
+    /**
+     * PDFBox chiude lo stream al termine di {@code save}: la chiusura non restituisce
+     * i blocchi al pool, serve comunque una chiamata esplicita a {@link #rilascia()}.
+     */
+    @Override
+    public void close() {
+        // Nessuna operazione
+    }
+
+    public long dimensione() {
+        return dimensione;
+    }
+
+    /**
+     * Scrive il contenuto sul canale indicato. Se il canale supporta le scritture
+     * "gathering" tutti i blocchi vengono consegnati con un'unica chiamata.
+     * Il buffer resta valido e può essere trasferito di nuovo.
+     */
+    public long trasferisci(WritableByteChannel destinazione) throws IOException {
+        verificaAttivo();
+        ByteBuffer[] viste = visteInLettura();
+        long scritti = 0;
+        if (destinazione instanceof GatheringByteChannel) {
+            GatheringByteChannel canale = (GatheringByteChannel) destinazione;
+            while (scritti < dimensione) {
+                scritti += canale.write(viste);
+            }
+        } else {
+            for (ByteBuffer vista : viste) {
+                while (vista.hasRemaining()) {
+                    scritti += destinazione.write(vista);
+                }
+            }
+        }
+        return scritti;
+    }
+
+    /**
+     * Copia il contenuto in un array. Da usare solo quando il chiamante ha bisogno
+     * di un {@code byte[]}: la consegna verso canali deve passare da {@link #trasferisci}.
+     */
+    public byte[] toByteArray() {
+        verificaAttivo();
+        if (dimensione > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Contenuto troppo grande per un array: " + dimensione + " byte");
+        }
+        byte[] copia = new byte[(int) dimensione];
+        int posizione = 0;
+        for (ByteBuffer vista : visteInLettura()) {
+            int lunghezza = vista.remaining();
+            vista.get(copia, posizione, lunghezza);
+            posizione += lunghezza;
+        }
+        return copia;
+    }
+
+    /**
+     * Restituisce i blocchi al pool e aggiorna la stima di dimensione per le
+     * acquisizioni successive. Dopo il rilascio il buffer non è più utilizzabile.
+     */
+    public void rilascia() {
+        if (rilasciato) {
+            return;
+        }
+        rilasciato = true;
+        if (dimensione > 0) {
+            // Media mobile esponenziale (peso 1/4 all'ultima uscita)
+            dimensioneMedia.updateAndGet(media -> (media * 3 + dimensione) / 4);
+        }
+        for (ByteBuffer blocco : blocchi) {
+            restituisciBlocco(blocco);
+        }
+        blocchi.clear();
+        corrente = null;
+    }
+
+    private void avanzaBlocco() {
+        indiceCorrente++;
+        if (indiceCorrente >= blocchi.size()) {
+            blocchi.add(prendiBlocco());
+        }
+        corrente = blocchi.get(indiceCorrente);
+    }
+
+    /**
+     * Viste in sola lettura sui blocchi scritti, senza copia dei dati.
+     */
+    ByteBuffer[] visteInLettura() {
+        List<ByteBuffer> viste = new ArrayList<>(blocchi.size());
+        for (ByteBuffer blocco : blocchi) {
+            if (blocco.position() == 0) {
+                break;
+            }
+            ByteBuffer vista = blocco.duplicate();
+            vista.flip();
+            viste.add(vista);
+        }
+        return viste.toArray(new ByteBuffer[0]);
+    }
+
+    private void verificaAttivo() {
+        if (rilasciato) {
+            throw new IllegalStateException("Buffer già rilasciato");
+        }
+    }
+}
+//EOF
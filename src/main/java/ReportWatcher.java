@@ -0,0 +1,282 @@
+// ReportWatcher.java
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modalità "watch": rigenera i rapporti solo quando cambiano i file di inventario
+ *
+ * Ogni file {@code *.properties} della directory osservata è una {@link RichiestaReport}
+ * (tipicamente una per sede) e produce nella directory di output un rapporto con lo
+ * stesso nome base. Le raffiche di modifiche allo stesso file vengono accorpate
+ * (debounce); per ogni file si confrontano i dati kit per kit con l'ultima versione
+ * elaborata e il rapporto viene rigenerato solo se qualcosa è effettivamente cambiato.
+ * Le rigenerazioni girano su un pool di thread di dimensione fissa.
+ */
+public final class ReportWatcher {
+
+    private static final String ESTENSIONE_INVENTARIO = ".properties";
+    private static final long INTERVALLO_CONTROLLO_MS = 100;
+
+    private final Path directoryInventario;
+    private final Path directoryOutput;
+    private final long debounceMs;
+    private final ExecutorService esecutore;
+
+    // Ultimo evento ricevuto per file, in attesa che la raffica di modifiche si esaurisca
+    private final Map<Path, Long> eventiInSospeso = new LinkedHashMap<>();
+    // Contenuto dell'ultima versione elaborata di ogni file
+    private final Map<Path, StatoInventario> stati = new ConcurrentHashMap<>();
+    private final Set<Path> inCoda = ConcurrentHashMap.newKeySet();
+    private final Map<Path, Object> lock = new ConcurrentHashMap<>();
+    private volatile StoricoInventario storico;
+    private volatile boolean attivo = true;
+
+    public ReportWatcher(Path directoryInventario, Path directoryOutput, int numeroThread, long debounceMs) {
+        this.directoryInventario = directoryInventario;
+        this.directoryOutput = directoryOutput;
+        this.debounceMs = debounceMs;
+        this.esecutore = Executors.newFixedThreadPool(Math.max(1, numeroThread), r -> {
+            Thread thread = new Thread(r, "report-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Osserva la directory fino a {@link #ferma()}. All'avvio vengono rigenerati i
+     * rapporti mancanti o più vecchi del rispettivo file di inventario.
+     */
+    public void esegui() throws IOException, InterruptedException {
+        Files.createDirectories(directoryOutput);
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            directoryInventario.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            scansioneIniziale();
+
+            while (attivo) {
+                WatchKey chiave = watchService.poll(INTERVALLO_CONTROLLO_MS, TimeUnit.MILLISECONDS);
+                if (chiave != null) {
+                    registraEventi(chiave);
+                    if (!chiave.reset()) {
+                        throw new IOException("Directory di inventario non più accessibile: " + directoryInventario);
+                    }
+                }
+                pianificaEventiStabili();
+            }
+        } finally {
+            esecutore.shutdown();
+            esecutore.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Storico su cui registrare le variazioni di stato a ogni rigenerazione.
+     */
+    public void setStorico(StoricoInventario storico) {
+        this.storico = storico;
+    }
+
+    public void ferma() {
+        attivo = false;
+    }
+
+    private void scansioneIniziale() throws IOException {
+        for (Path file : elencaInventari()) {
+            Path output = percorsoOutput(file, null);
+            if (output != null && Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                // Rapporto già aggiornato: registra solo lo stato di partenza
+                try {
+                    RichiestaReport richiesta = RichiestaReport.carica(file);
+                    stati.put(file, new StatoInventario(richiesta));
+                    if (storico != null) {
+                        storico.registra(richiesta);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    pianifica(file);
+                }
+            } else {
+                pianifica(file);
+            }
+        }
+    }
+
+    private void registraEventi(WatchKey chiave) throws IOException {
+        long adesso = System.currentTimeMillis();
+        for (WatchEvent<?> evento : chiave.pollEvents()) {
+            if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Eventi persi: ricontrolla tutti i file, il confronto per kit evita lavoro inutile
+                for (Path file : elencaInventari()) {
+                    eventiInSospeso.put(file, adesso);
+                }
+                continue;
+            }
+            Path file = directoryInventario.resolve((Path) evento.context());
+            if (isInventario(file)) {
+                eventiInSospeso.put(file, adesso);
+            }
+        }
+    }
+
+    private void pianificaEventiStabili() {
+        long limite = System.currentTimeMillis() - debounceMs;
+        Iterator<Map.Entry<Path, Long>> iteratore = eventiInSospeso.entrySet().iterator();
+        while (iteratore.hasNext()) {
+            Map.Entry<Path, Long> evento = iteratore.next();
+            if (evento.getValue() <= limite) {
+                iteratore.remove();
+                pianifica(evento.getKey());
+            }
+        }
+    }
+
+    private void pianifica(Path file) {
+        // Se il file è già in coda il lavoro leggerà comunque la versione più recente
+        if (inCoda.add(file)) {
+            esecutore.execute(() -> elabora(file));
+        }
+    }
+
+    private void elabora(Path file) {
+        synchronized (lock.computeIfAbsent(file, f -> new Object())) {
+            inCoda.remove(file);
+            try {
+                if (!Files.exists(file)) {
+                    if (stati.remove(file) != null) {
+                        System.out.println("🗑️ Inventario rimosso: " + file.getFileName());
+                    }
+                    return;
+                }
+
+                RichiestaReport richiesta = RichiestaReport.carica(file);
+                StatoInventario nuovo = new StatoInventario(richiesta);
+                StatoInventario precedente = stati.get(file);
+                List<String> kitModificati = nuovo.kitModificati(precedente);
+                if (precedente != null && precedente.intestazione.equals(nuovo.intestazione) && kitModificati.isEmpty()) {
+                    return;
+                }
+
+                long inizio = System.currentTimeMillis();
+                ReportOutputBuffer buffer = richiesta.renderizza();
+                try {
+                    Path output = percorsoOutput(file, richiesta.estensione());
+                    Path temporaneo = output.resolveSibling("." + output.getFileName() + ".tmp");
+                    ReportGenerator.salvaSuFile(buffer, temporaneo);
+                    Files.move(temporaneo, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    buffer.rilascia();
+                }
+                stati.put(file, nuovo);
+                StoricoInventario storico = this.storico;
+                if (storico != null) {
+                    storico.registra(richiesta);
+                }
+
+                System.out.println("✅ Sede " + richiesta.sede + ": rapporto rigenerato in "
+                        + (System.currentTimeMillis() - inizio) + "ms"
+                        + (precedente == null ? "" : " (kit modificati: "
+                        + (kitModificati.isEmpty() ? "nessuno, intestazione cambiata" : String.join(", ", kitModificati)) + ")"));
+            } catch (Exception e) {
+                System.err.println("❌ Errore nella rigenerazione di " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private List<Path> elencaInventari() throws IOException {
+        List<Path> file = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directoryInventario, "*" + ESTENSIONE_INVENTARIO)) {
+            for (Path inventario : stream) {
+                file.add(inventario);
+            }
+        }
+        return file;
+    }
+
+    private static boolean isInventario(Path file) {
+        String nome = file.getFileName().toString();
+        return nome.endsWith(ESTENSIONE_INVENTARIO) && !nome.startsWith(".");
+    }
+
+    /**
+     * Percorso del rapporto per un file di inventario. Con estensione {@code null}
+     * restituisce il rapporto esistente di qualunque formato, o {@code null} se manca.
+     */
+    private Path percorsoOutput(Path inventario, String estensione) throws IOException {
+        String nome = inventario.getFileName().toString();
+        String base = nome.substring(0, nome.length() - ESTENSIONE_INVENTARIO.length());
+        if (estensione != null) {
+            return directoryOutput.resolve(base + "." + estensione);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directoryOutput, base + ".*")) {
+            for (Path output : stream) {
+                if (!output.getFileName().toString().endsWith(".tmp")) {
+                    return output;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Impronta di un file di inventario: parametri di intestazione e dati grezzi
+     * di ogni kit, indicizzati per codice kit.
+     */
+    private static final class StatoInventario {
+        final String intestazione;
+        final Map<String, String> kit = new LinkedHashMap<>();
+
+        StatoInventario(RichiestaReport richiesta) {
+            this.intestazione = String.join("\n", richiesta.operatoreNome, richiesta.sede, richiesta.revisione,
+                    richiesta.firmaPath, richiesta.logoPath, richiesta.formato,
+                    String.valueOf(richiesta.impaginazione), String.valueOf(richiesta.linearizzato),
+                    String.valueOf(richiesta.data));
+            for (String datiKit : richiesta.kitsData.split("\\|")) {
+                if (datiKit.trim().isEmpty()) {
+                    continue;
+                }
+                // Il codice kit è il primo campo di ogni articolo (codiceKit,ubicazione,...)
+                int virgola = datiKit.indexOf(',');
+                String codiceKit = virgola > 0 ? datiKit.substring(0, virgola).trim() : datiKit.trim();
+                kit.merge(codiceKit, datiKit, (a, b) -> a + "|" + b);
+            }
+        }
+
+        List<String> kitModificati(StatoInventario precedente) {
+            List<String> modificati = new ArrayList<>();
+            Map<String, String> kitPrecedenti = precedente != null ? precedente.kit : Map.of();
+            for (Map.Entry<String, String> voce : kit.entrySet()) {
+                if (!Objects.equals(voce.getValue(), kitPrecedenti.get(voce.getKey()))) {
+                    modificati.add(voce.getKey());
+                }
+            }
+            for (String codiceKit : kitPrecedenti.keySet()) {
+                if (!kit.containsKey(codiceKit)) {
+                    modificati.add(codiceKit);
+                }
+            }
+            return modificati;
+        }
+    }
+}
+//EOF
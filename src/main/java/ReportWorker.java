@@ -0,0 +1,236 @@
+// ReportWorker.java
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker che estrae richieste da una {@link CodaReport} e ne pubblica i risultati
+ *
+ * Ogni pod avvia un worker sulla stessa directory condivisa: i lavori vengono
+ * distribuiti tra tutte le repliche e la capacità cresce con il loro numero.
+ * Un thread di servizio rinnova i lease dei lavori in corso e rimette in coda
+ * quelli abbandonati da worker terminati. Richieste identiche elaborate nello
+ * stesso momento da thread diversi vengono generate una sola volta.
+ * Con un {@link GovernatoreRisorse} i lavori rifiutati per mancanza di risorse
+ * tornano in attesa senza consumare tentativi, a disposizione delle altre repliche.
+ */
+public final class ReportWorker {
+
+    private static final long ATTESA_CODA_VUOTA_MS = 500;
+
+    private final CodaReport coda;
+    private final int numeroThread;
+    private final CoalescenzaRichieste coalescenza;
+    private final GovernatoreRisorse governatore;
+    private final Set<CodaReport.Lease> leaseAttivi = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completati = new AtomicLong();
+    private final AtomicLong falliti = new AtomicLong();
+    private final AtomicLong restituiti = new AtomicLong();
+    private volatile StoricoInventario storico;
+    private volatile boolean attivo = true;
+
+    public ReportWorker(CodaReport coda, int numeroThread) {
+        this(coda, numeroThread, coda.getDurataLease());
+    }
+
+    public ReportWorker(CodaReport coda, int numeroThread, Duration attesaCondivisa) {
+        this(coda, numeroThread, attesaCondivisa, null);
+    }
+
+    public ReportWorker(CodaReport coda, int numeroThread, Duration attesaCondivisa, GovernatoreRisorse governatore) {
+        this.coda = coda;
+        this.numeroThread = Math.max(1, numeroThread);
+        this.governatore = governatore;
+        this.coalescenza = new CoalescenzaRichieste(attesaCondivisa, governatore);
+    }
+
+    /**
+     * Elabora la coda fino a {@link #ferma()}. Con {@code esciSeVuota} ogni thread
+     * termina appena non trova più lavori in attesa.
+     */
+    public void esegui(boolean esciSeVuota) throws InterruptedException {
+        ScheduledExecutorService servizio = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "report-worker-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervallo = Math.max(1, coda.getDurataLease().toMillis() / 3);
+        servizio.scheduleAtFixedRate(this::manutenzione, 0, intervallo, TimeUnit.MILLISECONDS);
+
+        Thread[] threads = new Thread[numeroThread];
+        for (int i = 0; i < numeroThread; i++) {
+            threads[i] = new Thread(() -> cicloElaborazione(esciSeVuota), "report-worker-" + i);
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            servizio.shutdownNow();
+        }
+    }
+
+    /**
+     * Storico su cui registrare le variazioni di stato dei lavori completati.
+     */
+    public void setStorico(StoricoInventario storico) {
+        this.storico = storico;
+    }
+
+    public void ferma() {
+        attivo = false;
+    }
+
+    public long getCompletati() {
+        return completati.get();
+    }
+
+    public long getFalliti() {
+        return falliti.get();
+    }
+
+    /**
+     * Numero di lavori rimessi in coda per mancanza di risorse.
+     */
+    public long getRestituiti() {
+        return restituiti.get();
+    }
+
+    /**
+     * Numero di lavori che hanno riusato il risultato di un lavoro identico.
+     */
+    public long getCondivisi() {
+        return coalescenza.getCondivisi();
+    }
+
+    private void cicloElaborazione(boolean esciSeVuota) {
+        while (attivo) {
+            CodaReport.Lease lease;
+            try {
+                lease = coda.reclama();
+            } catch (IOException e) {
+                System.err.println("❌ Errore di accesso alla coda: " + e.getMessage());
+                lease = null;
+            }
+
+            if (lease == null) {
+                if (esciSeVuota) {
+                    return;
+                }
+                try {
+                    Thread.sleep(ATTESA_CODA_VUOTA_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+
+            if (!elabora(lease)) {
+                // Lavoro restituito: pausa prima di reclamarne un altro, così può passare a un'altra replica
+                try {
+                    Thread.sleep(ATTESA_CODA_VUOTA_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Restituisce false se il lavoro è stato rimesso in coda per mancanza di risorse
+    private boolean elabora(CodaReport.Lease lease) {
+        leaseAttivi.add(lease);
+        try {
+            try (CoalescenzaRichieste.Risultato risultato = coalescenza.esegui(lease.richiesta)) {
+                if (lease.completa(risultato.getBuffer(), lease.richiesta.estensione())) {
+                    completati.incrementAndGet();
+                    System.out.println("✅ Lavoro " + lease.id + " completato"
+                            + (risultato.isCondiviso() ? " (risultato condiviso)" : ""));
+                    registraStorico(lease);
+                } else {
+                    System.err.println("⚠️ Lease perso per il lavoro " + lease.id + ": risultato scartato");
+                }
+            }
+        } catch (GovernatoreRisorse.Rifiuto e) {
+            restituiti.incrementAndGet();
+            System.err.println("⏳ Lavoro " + lease.id + " rimesso in coda: " + e.getMessage());
+            try {
+                lease.restituisci();
+            } catch (IOException ioe) {
+                System.err.println("❌ Impossibile rimettere in coda " + lease.id + ": " + ioe.getMessage());
+            }
+            return false;
+        } catch (Exception e) {
+            falliti.incrementAndGet();
+            System.err.println("❌ Errore nel lavoro " + lease.id + " (tentativo " + lease.tentativo + "): " + e.getMessage());
+            try {
+                lease.fallisci(e);
+            } catch (IOException ioe) {
+                System.err.println("❌ Impossibile registrare il fallimento di " + lease.id + ": " + ioe.getMessage());
+            }
+        } finally {
+            leaseAttivi.remove(lease);
+        }
+        return true;
+    }
+
+    private void registraStorico(CodaReport.Lease lease) {
+        StoricoInventario storico = this.storico;
+        if (storico == null) {
+            return;
+        }
+        // Il rapporto è già pubblicato: un errore dello storico non fa fallire il lavoro
+        try {
+            storico.registra(lease.richiesta);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("❌ Impossibile aggiornare lo storico per il lavoro " + lease.id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Metriche del worker in formato Prometheus: coda condivisa, esiti dei lavori,
+     * degradazioni per rispettare il tempo massimo e, se presente, stato del
+     * governatore delle risorse.
+     */
+    public String metriche() {
+        StringBuilder testo = new StringBuilder();
+        try {
+            GovernatoreRisorse.metrica(testo, "report_coda_in_attesa", "gauge",
+                    "Lavori in attesa nella coda condivisa", coda.lavoriInAttesa());
+        } catch (IOException e) {
+            // Volume della coda momentaneamente non leggibile: la metrica viene omessa
+        }
+        GovernatoreRisorse.metrica(testo, "report_worker_completati_totale", "counter", "Lavori completati", completati.get());
+        GovernatoreRisorse.metrica(testo, "report_worker_falliti_totale", "counter", "Lavori falliti", falliti.get());
+        GovernatoreRisorse.metrica(testo, "report_worker_restituiti_totale", "counter",
+                "Lavori rimessi in coda per mancanza di risorse", restituiti.get());
+        testo.append(DegradazioneRendering.metriche());
+        if (governatore != null) {
+            testo.append(governatore.metriche());
+        }
+        return testo.toString();
+    }
+
+    private void manutenzione() {
+        for (CodaReport.Lease lease : leaseAttivi) {
+            lease.rinnova();
+        }
+        try {
+            int recuperati = coda.recuperaScaduti();
+            if (recuperati > 0) {
+                System.out.println("♻️ Rimessi in coda " + recuperati + " lavori con lease scaduto");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("❌ Errore nel recupero dei lease scaduti: " + e.getMessage());
+        }
+    }
+}
+//EOF
@@ -0,0 +1,387 @@
+// ReportZipExporter.java
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Esportazione di più rapporti in un unico archivio ZIP in streaming
+ *
+ * I rapporti vengono generati e compressi in parallelo; ogni voce è scritta
+ * sul canale appena pronta, nell'ordine di completamento, così il client riceve
+ * i primi byte mentre gli altri rapporti sono ancora in lavorazione. Il numero
+ * di rapporti in memoria è limitato dalla finestra di lavori in volo.
+ * In coda all'archivio viene aggiunta la voce manifest.json con l'elenco dei
+ * rapporti ed eventuali errori.
+ */
+public final class ReportZipExporter {
+
+    private static final String NOME_MANIFEST = "manifest.json";
+
+    // Costanti del formato ZIP (APPNOTE 4.3)
+    private static final int FIRMA_INTESTAZIONE_LOCALE = 0x04034b50;
+    private static final int FIRMA_DIRECTORY_CENTRALE = 0x02014b50;
+    private static final int FIRMA_FINE_DIRECTORY = 0x06054b50;
+    private static final short VERSIONE_ZIP = 20;
+    private static final short FLAG_NOMI_UTF8 = 0x0800;
+    private static final short METODO_DEFLATE = 8;
+    private static final long LIMITE_ZIP32 = 0xFFFFFFFFL;
+    private static final long ATTESA_CHIUSURA_SECONDI = 30;
+
+    private final int parallelismo;
+    private final int livelloCompressione;
+
+    public ReportZipExporter(int parallelismo, int livelloCompressione) {
+        this.parallelismo = Math.max(1, parallelismo);
+        this.livelloCompressione = livelloCompressione;
+    }
+
+    /**
+     * Scrive l'archivio sul canale indicato, che non viene chiuso.
+     * Restituisce il numero di rapporti esportati con successo.
+     */
+    public int esporta(List<RichiestaReport> richieste, WritableByteChannel destinazione)
+            throws IOException, InterruptedException {
+
+        ScritturaZip zip = new ScritturaZip(destinazione);
+        List<String> manifest = new ArrayList<>();
+        Set<String> nomiUsati = new HashSet<>();
+        int esportati = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelismo);
+        CompletionService<VoceCompressa> completamenti = new ExecutorCompletionService<>(executor);
+        try {
+
+            // Finestra limitata di lavori in volo: al massimo 2 rapporti per thread in memoria
+            int finestra = parallelismo * 2;
+            int prossimo = 0;
+            int inVolo = 0;
+            while (prossimo < richieste.size() && inVolo < finestra) {
+                inviaLavoro(completamenti, richieste.get(prossimo), prossimo);
+                prossimo++;
+                inVolo++;
+            }
+
+            while (inVolo > 0) {
+                Future<VoceCompressa> completato = completamenti.take();
+                inVolo--;
+                if (prossimo < richieste.size()) {
+                    inviaLavoro(completamenti, richieste.get(prossimo), prossimo);
+                    prossimo++;
+                    inVolo++;
+                }
+
+                VoceCompressa voce;
+                try {
+                    voce = completato.get();
+                } catch (ExecutionException e) {
+                    // Non dovrebbe accadere: gli errori di generazione sono registrati nella voce
+                    throw new IOException("Errore inatteso nell'esportazione", e.getCause());
+                }
+
+                RichiestaReport richiesta = richieste.get(voce.indice);
+                if (voce.errore != null) {
+                    manifest.add(voceManifest(richiesta, null, voce));
+                    continue;
+                }
+
+                try {
+                    String nome = nomeUnivoco(richiesta, nomiUsati);
+                    zip.scriviVoce(nome, voce);
+                    manifest.add(voceManifest(richiesta, nome, voce));
+                    esportati++;
+                } finally {
+                    voce.compresso.rilascia();
+                }
+            }
+        } finally {
+            // Uscita anticipata per errore: le voci già compresse non ancora scritte
+            // tengono blocchi del pool che vanno restituiti
+            rilasciaCompletate(completamenti);
+            executor.shutdownNow();
+            try {
+                // I rendering già avviati terminano comunque: si attendono per rilasciarne i blocchi
+                if (executor.awaitTermination(ATTESA_CHIUSURA_SECONDI, TimeUnit.SECONDS)) {
+                    rilasciaCompletate(completamenti);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        scriviManifest(zip, manifest);
+        zip.chiudi();
+        return esportati;
+    }
+
+    private static void rilasciaCompletate(CompletionService<VoceCompressa> completamenti) {
+        Future<VoceCompressa> completato;
+        while ((completato = completamenti.poll()) != null) {
+            try {
+                VoceCompressa voce = completato.get();
+                if (voce.compresso != null) {
+                    voce.compresso.rilascia();
+                }
+            } catch (ExecutionException | CancellationException e) {
+                // Nessun buffer da restituire
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void inviaLavoro(CompletionService<VoceCompressa> completamenti, RichiestaReport richiesta, int indice) {
+        completamenti.submit(() -> comprimi(richiesta, indice));
+    }
+
+    private VoceCompressa comprimi(RichiestaReport richiesta, int indice) {
+        VoceCompressa voce = new VoceCompressa(indice);
+        ReportOutputBuffer originale = null;
+        try {
+            originale = richiesta.renderizza();
+            voce.dimensione = originale.dimensione();
+            voce.compresso = deflate(originale.visteInLettura(), voce);
+        } catch (Exception e) {
+            voce.errore = e.getClass().getSimpleName() + ": " + e.getMessage();
+        } finally {
+            if (originale != null) {
+                originale.rilascia();
+            }
+        }
+        return voce;
+    }
+
+    private ReportOutputBuffer deflate(ByteBuffer[] sorgenti, VoceCompressa voce) {
+        Deflater deflater = new Deflater(livelloCompressione, true);
+        CRC32 crc = new CRC32();
+        ReportOutputBuffer compresso = ReportOutputBuffer.acquisisci();
+        byte[] blocco = new byte[64 * 1024];
+        try {
+            for (ByteBuffer sorgente : sorgenti) {
+                crc.update(sorgente.duplicate());
+                deflater.setInput(sorgente);
+                while (!deflater.needsInput()) {
+                    int prodotti = deflater.deflate(blocco);
+                    compresso.write(blocco, 0, prodotti);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int prodotti = deflater.deflate(blocco);
+                compresso.write(blocco, 0, prodotti);
+            }
+            voce.crc = crc.getValue();
+            return compresso;
+        } catch (RuntimeException e) {
+            compresso.rilascia();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void scriviManifest(ScritturaZip zip, List<String> voci) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("{\"generato\":\"").append(LocalDateTime.now().withNano(0)).append("\",\"rapporti\":[");
+        for (int i = 0; i < voci.size(); i++) {
+            if (i > 0) {
+                manifest.append(',');
+            }
+            manifest.append('\n').append(voci.get(i));
+        }
+        manifest.append("\n]}\n");
+
+        byte[] contenuto = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        VoceCompressa voce = new VoceCompressa(-1);
+        voce.dimensione = contenuto.length;
+        voce.compresso = deflate(new ByteBuffer[]{ByteBuffer.wrap(contenuto)}, voce);
+        try {
+            zip.scriviVoce(NOME_MANIFEST, voce);
+        } finally {
+            voce.compresso.rilascia();
+        }
+    }
+
+    private static String voceManifest(RichiestaReport richiesta, String nome, VoceCompressa voce) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"sede\":\"").append(escapeJson(richiesta.sede)).append('"');
+        sb.append(",\"operatore\":\"").append(escapeJson(richiesta.operatoreNome)).append('"');
+        sb.append(",\"data\":\"").append(richiesta.data).append('"');
+        if (nome != null) {
+            sb.append(",\"file\":\"").append(escapeJson(nome)).append('"');
+            sb.append(",\"dimensione\":").append(voce.dimensione);
+            sb.append(",\"crc32\":\"").append(String.format("%08x", voce.crc)).append('"');
+        } else {
+            sb.append(",\"errore\":\"").append(escapeJson(voce.errore)).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    static String escapeJson(String valore) {
+        if (valore == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(valore.length());
+        for (int i = 0; i < valore.length(); i++) {
+            char c = valore.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String nomeUnivoco(RichiestaReport richiesta, Set<String> nomiUsati) {
+        String sede = richiesta.sede.isEmpty() ? "sede" : richiesta.sede.replaceAll("[^A-Za-z0-9._-]+", "_");
+        String base = "rapporto_" + sede + "_" + richiesta.data;
+        String nome = base + "." + richiesta.estensione();
+        for (int progressivo = 2; !nomiUsati.add(nome); progressivo++) {
+            nome = base + "_" + progressivo + "." + richiesta.estensione();
+        }
+        return nome;
+    }
+
+    private static final class VoceCompressa {
+        final int indice;
+        ReportOutputBuffer compresso;
+        long dimensione;
+        long crc;
+        String errore;
+
+        VoceCompressa(int indice) {
+            this.indice = indice;
+        }
+    }
+
+    /**
+     * Scrittura di basso livello del formato ZIP con dati già compressi: le
+     * dimensioni e il CRC sono noti prima dell'intestazione locale, quindi non
+     * servono data descriptor e ogni voce è scritta in un'unica passata.
+     */
+    private static final class ScritturaZip {
+        private final WritableByteChannel canale;
+        private ByteBuffer directory = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long posizione;
+        private int numeroVoci;
+        private final int oraDos;
+        private final int dataDos;
+
+        ScritturaZip(WritableByteChannel canale) {
+            this.canale = canale;
+            LocalDateTime adesso = LocalDateTime.now();
+            this.oraDos = (adesso.getHour() << 11) | (adesso.getMinute() << 5) | (adesso.getSecond() / 2);
+            this.dataDos = ((adesso.getYear() - 1980) << 9) | (adesso.getMonthValue() << 5) | adesso.getDayOfMonth();
+        }
+
+        void scriviVoce(String nome, VoceCompressa voce) throws IOException {
+            byte[] nomeUtf8 = nome.getBytes(StandardCharsets.UTF_8);
+            long compresso = voce.compresso.dimensione();
+            if (posizione > LIMITE_ZIP32 || compresso > LIMITE_ZIP32 || voce.dimensione > LIMITE_ZIP32
+                    || numeroVoci >= 0xFFFF) {
+                throw new IOException("Archivio troppo grande per il formato ZIP senza estensioni Zip64");
+            }
+
+            ByteBuffer intestazione = ByteBuffer.allocate(30 + nomeUtf8.length).order(ByteOrder.LITTLE_ENDIAN);
+            intestazione.putInt(FIRMA_INTESTAZIONE_LOCALE);
+            intestazione.putShort(VERSIONE_ZIP);
+            intestazione.putShort(FLAG_NOMI_UTF8);
+            intestazione.putShort(METODO_DEFLATE);
+            intestazione.putShort((short) oraDos);
+            intestazione.putShort((short) dataDos);
+            intestazione.putInt((int) voce.crc);
+            intestazione.putInt((int) compresso);
+            intestazione.putInt((int) voce.dimensione);
+            intestazione.putShort((short) nomeUtf8.length);
+            intestazione.putShort((short) 0);
+            intestazione.put(nomeUtf8);
+            intestazione.flip();
+
+            long offsetIntestazione = posizione;
+            scrivi(intestazione);
+            posizione += voce.compresso.trasferisci(canale);
+
+            aggiungiADirectory(nomeUtf8, voce, compresso, offsetIntestazione);
+            numeroVoci++;
+        }
+
+        private void aggiungiADirectory(byte[] nomeUtf8, VoceCompressa voce, long compresso, long offset) {
+            int richiesto = 46 + nomeUtf8.length;
+            if (directory.remaining() < richiesto) {
+                ByteBuffer ingrandita = ByteBuffer.allocate(Math.max(directory.capacity() * 2, directory.position() + richiesto))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                directory.flip();
+                ingrandita.put(directory);
+                directory = ingrandita;
+            }
+            directory.putInt(FIRMA_DIRECTORY_CENTRALE);
+            directory.putShort(VERSIONE_ZIP);
+            directory.putShort(VERSIONE_ZIP);
+            directory.putShort(FLAG_NOMI_UTF8);
+            directory.putShort(METODO_DEFLATE);
+            directory.putShort((short) oraDos);
+            directory.putShort((short) dataDos);
+            directory.putInt((int) voce.crc);
+            directory.putInt((int) compresso);
+            directory.putInt((int) voce.dimensione);
+            directory.putShort((short) nomeUtf8.length);
+            directory.putShort((short) 0); // extra
+            directory.putShort((short) 0); // commento
+            directory.putShort((short) 0); // disco
+            directory.putShort((short) 0); // attributi interni
+            directory.putInt(0);           // attributi esterni
+            directory.putInt((int) offset);
+            directory.put(nomeUtf8);
+        }
+
+        void chiudi() throws IOException {
+            long inizioDirectory = posizione;
+            directory.flip();
+            long dimensioneDirectory = directory.remaining();
+            scrivi(directory);
+            if (inizioDirectory > LIMITE_ZIP32) {
+                throw new IOException("Archivio troppo grande per il formato ZIP senza estensioni Zip64");
+            }
+
+            ByteBuffer fine = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            fine.putInt(FIRMA_FINE_DIRECTORY);
+            fine.putShort((short) 0);
+            fine.putShort((short) 0);
+            fine.putShort((short) numeroVoci);
+            fine.putShort((short) numeroVoci);
+            fine.putInt((int) dimensioneDirectory);
+            fine.putInt((int) inizioDirectory);
+            fine.putShort((short) 0);
+            fine.flip();
+            scrivi(fine);
+        }
+
+        private void scrivi(ByteBuffer dati) throws IOException {
+            while (dati.hasRemaining()) {
+                posizione += canale.write(dati);
+            }
+        }
+    }
+}
+//EOF
@@ -0,0 +1,160 @@
+// RichiestaReport.java
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Parametri di una singola generazione di rapporto
+ *
+ * Raccoglie gli stessi dati passati a riga di comando (operatore, kit nel formato
+ * testuale usato dal server Node, sede, revisione, firma, logo) più formato e data,
+ * così che una richiesta possa essere salvata su file, messa in coda ed eseguita
+ * da un altro processo.
+ */
+public final class RichiestaReport {
+
+    public String operatoreNome;
+    public String kitsData;
+    public String sede;
+    public String revisione;
+    public String firmaPath;
+    public String logoPath;
+    public String formato;
+    public ReportGenerator.ModalitaImpaginazione impaginazione;
+    public LocalDate data;
+    // Termine di consegna facoltativo (vedi DegradazioneRendering)
+    public Instant termine;
+    public boolean linearizzato;
+
+    public RichiestaReport(String operatoreNome, String kitsData, String sede, String revisione,
+                           String firmaPath, String logoPath) {
+        this.operatoreNome = operatoreNome != null ? operatoreNome : "";
+        this.kitsData = kitsData != null ? kitsData : "";
+        this.sede = sede != null ? sede : "";
+        this.revisione = revisione != null ? revisione : "";
+        this.firmaPath = firmaPath != null ? firmaPath : "";
+        this.logoPath = logoPath != null ? logoPath : "";
+        this.formato = "pdf";
+        this.impaginazione = ReportGenerator.ModalitaImpaginazione.SEQUENZIALE;
+        this.data = LocalDate.now();
+    }
+
+    /**
+     * Costruisce la richiesta dai parametri posizionali della riga di comando:
+     * operatore, kits, sede, revisione, [firma], [logo].
+     */
+    public static RichiestaReport daArgomenti(String[] args) {
+        return new RichiestaReport(
+            args[0],
+            args[1],
+            args[2],
+            args[3],
+            args.length > 4 ? args[4] : "",
+            args.length > 5 ? args[5] : ""
+        );
+    }
+
+    public static RichiestaReport carica(Path file) throws IOException {
+        Properties proprieta = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            proprieta.load(in);
+        }
+        RichiestaReport richiesta = new RichiestaReport(
+            proprieta.getProperty("operatore"),
+            proprieta.getProperty("kits"),
+            proprieta.getProperty("sede"),
+            proprieta.getProperty("revisione"),
+            proprieta.getProperty("firma"),
+            proprieta.getProperty("logo")
+        );
+        richiesta.formato = proprieta.getProperty("formato", "pdf");
+        richiesta.impaginazione = ReportGenerator.ModalitaImpaginazione.daNome(proprieta.getProperty("impaginazione"));
+        String data = proprieta.getProperty("data", "");
+        if (!data.isEmpty()) {
+            richiesta.data = LocalDate.parse(data);
+        }
+        richiesta.linearizzato = Boolean.parseBoolean(proprieta.getProperty("linearizzato", "false"));
+        String termine = proprieta.getProperty("termine", "");
+        if (!termine.isEmpty()) {
+            richiesta.termine = Instant.parse(termine);
+        }
+        return richiesta;
+    }
+
+    public void salva(Path file) throws IOException {
+        Properties proprieta = new Properties();
+        proprieta.setProperty("operatore", operatoreNome);
+        proprieta.setProperty("kits", kitsData);
+        proprieta.setProperty("sede", sede);
+        proprieta.setProperty("revisione", revisione);
+        proprieta.setProperty("firma", firmaPath);
+        proprieta.setProperty("logo", logoPath);
+        proprieta.setProperty("formato", formato);
+        proprieta.setProperty("impaginazione", impaginazione.name().toLowerCase(Locale.ROOT));
+        proprieta.setProperty("data", data != null ? data.toString() : "");
+        proprieta.setProperty("termine", termine != null ? termine.toString() : "");
+        proprieta.setProperty("linearizzato", String.valueOf(linearizzato));
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            proprieta.store(out, "Richiesta rapporto cassette");
+        }
+    }
+
+    public List<ReportGenerator.Sezione> cassette() {
+        return ReportGenerator.parseKitsData(kitsData);
+    }
+
+    public boolean isPdf() {
+        return formato == null || formato.isEmpty() || formato.equalsIgnoreCase("pdf");
+    }
+
+    public String estensione() {
+        return isPdf() ? "pdf" : ReportDataWriter.Formato.daNome(formato).estensione;
+    }
+
+    /**
+     * Esegue la generazione nel formato richiesto. Il chiamante deve invocare
+     * {@link ReportOutputBuffer#rilascia()} dopo aver consegnato il risultato.
+     */
+    public ReportOutputBuffer renderizza() throws IOException {
+        if (isPdf()) {
+            ReportGenerator.OpzioniRendering opzioni = new ReportGenerator.OpzioniRendering();
+            opzioni.impaginazione = impaginazione;
+            opzioni.termine = termine;
+            opzioni.linearizzato = linearizzato;
+            return ReportGenerator.render(
+                logoPath.isEmpty() ? null : Paths.get(logoPath),
+                sede,
+                operatoreNome,
+                firmaPath.isEmpty() ? null : Paths.get(firmaPath),
+                data,
+                cassette(),
+                revisione,
+                opzioni
+            );
+        }
+
+        ReportDataWriter.Formato formatoDati = ReportDataWriter.Formato.daNome(formato);
+        ReportOutputBuffer buffer = ReportOutputBuffer.acquisisci();
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+            ReportDataWriter.scrivi(out, formatoDati, sede, operatoreNome, data, cassette(), revisione);
+        } catch (IOException | RuntimeException e) {
+            buffer.rilascia();
+            throw e;
+        }
+        return buffer;
+    }
+}
+//EOF
@@ -0,0 +1,838 @@
+// StoricoInventario.java
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Storico delle variazioni di stato degli articoli, su log append-only segmentato
+ *
+ * Ogni generazione registra, per ogni articolo valutato, un evento solo se lo stato
+ * (quantità, soglia, scadenza, stato) è cambiato rispetto all'ultimo registrato.
+ * Gli eventi sono scritti in segmenti a dimensione fissa mappati in memoria; ogni
+ * record è preceduto da lunghezza e CRC32, così una scrittura interrotta viene
+ * riconosciuta e scartata alla riapertura. Un indice per kit (tempi e posizioni in
+ * ordine cronologico) permette di rispondere a domande come "quando il kit è andato
+ * sotto soglia" con una ricerca binaria, senza rileggere esportazioni o PDF.
+ *
+ * Quando i segmenti chiusi superano {@link #SOGLIA_COMPATTAZIONE} vengono fusi in
+ * un unico segmento: gli eventi più vecchi della finestra di dettaglio sono ridotti
+ * all'ultimo stato di ogni articolo per giorno. La compattazione gira in un thread
+ * separato e legge solo segmenti chiusi, che non cambiano più, quindi le registrazioni
+ * proseguono nel frattempo. Il risultato va in un segmento con un numero nuovo (un file
+ * mappato non viene mai sostituito): la sua intestazione indica la posizione in ordine
+ * e fin dove copre. I segmenti coperti vengono eliminati subito se il sistema lo
+ * consente, altrimenti (Windows, file ancora mappati) alla riapertura successiva.
+ *
+ * Un solo processo alla volta può aprire lo storico (lock su file); chi lo apre per
+ * poco, come una singola generazione da riga di comando, può attendere che si liberi.
+ */
+public final class StoricoInventario implements Closeable {
+
+    static final int DIMENSIONE_SEGMENTO = 8 * 1024 * 1024;
+    static final int SOGLIA_COMPATTAZIONE = 8;
+    static final Duration FINESTRA_DETTAGLIO = Duration.ofDays(90);
+    private static final long INTERVALLO_LOCK_MS = 50;
+
+    private static final byte[] MAGIA = "FAMSTOR1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSIONE = 1;
+    private static final int DIMENSIONE_INTESTAZIONE = 32;
+    private static final int FLAG_COMPATTATO = 1;
+    private static final int SENZA_SCADENZA = Integer.MIN_VALUE;
+    private static final String PREFISSO = "segmento-";
+    private static final String ESTENSIONE = ".log";
+    private static final DateTimeFormatter FORMATO_SCADENZA = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private final Path directory;
+    private final int dimensioneSegmento;
+    private final FileChannel canaleLock;
+    private final FileLock lock;
+
+    private final List<Segmento> segmenti = new ArrayList<>();
+    private Indici indici = new Indici();
+    // Numero del prossimo file di segmento: oltre quelli esistenti e quelli coperti da una compattazione
+    private int prossimoNumero = 1;
+    private boolean chiuso;
+
+    // Una compattazione alla volta, automatica o richiesta esplicitamente
+    private final Object lockCompattazione = new Object();
+    private Thread compattatore;
+
+    private StoricoInventario(Path directory, int dimensioneSegmento, FileChannel canaleLock, FileLock lock) {
+        this.directory = directory;
+        this.dimensioneSegmento = dimensioneSegmento;
+        this.canaleLock = canaleLock;
+        this.lock = lock;
+    }
+
+    public static StoricoInventario apri(Path directory) throws IOException {
+        return apri(directory, Duration.ZERO);
+    }
+
+    /**
+     * Apre lo storico attendendo al massimo {@code attesaMassima} che un altro
+     * processo rilasci il lock.
+     */
+    public static StoricoInventario apri(Path directory, Duration attesaMassima) throws IOException {
+        return apri(directory, DIMENSIONE_SEGMENTO, attesaMassima);
+    }
+
+    static StoricoInventario apri(Path directory, int dimensioneSegmento) throws IOException {
+        return apri(directory, dimensioneSegmento, Duration.ZERO);
+    }
+
+    private static StoricoInventario apri(Path directory, int dimensioneSegmento, Duration attesaMassima)
+            throws IOException {
+        Files.createDirectories(directory);
+        FileChannel canaleLock = FileChannel.open(directory.resolve("storico.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = attendiLock(canaleLock, attesaMassima);
+        } catch (IOException | RuntimeException e) {
+            canaleLock.close();
+            throw e;
+        }
+        if (lock == null) {
+            canaleLock.close();
+            throw new IOException("Storico già aperto da un altro processo: " + directory);
+        }
+        StoricoInventario storico = new StoricoInventario(directory, dimensioneSegmento, canaleLock, lock);
+        try {
+            storico.carica();
+        } catch (IOException | RuntimeException e) {
+            storico.close();
+            throw e;
+        }
+        return storico;
+    }
+
+    // null se il lock è ancora di un altro processo allo scadere dell'attesa
+    private static FileLock attendiLock(FileChannel canaleLock, Duration attesaMassima) throws IOException {
+        long limite = System.nanoTime() + attesaMassima.toNanos();
+        for (;;) {
+            FileLock lock;
+            try {
+                lock = canaleLock.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Già aperto da questo stesso processo: attendere non servirebbe
+                return null;
+            }
+            if (lock != null || System.nanoTime() - limite >= 0) {
+                return lock;
+            }
+            try {
+                Thread.sleep(INTERVALLO_LOCK_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Evento di variazione di stato di un articolo.
+     */
+    public static final class Evento {
+        public final long tempo;
+        public final String sede;
+        public final String kit;
+        public final String codice;
+        public final String lotto;
+        public final int quantita;
+        public final int soglia;
+        public final LocalDate scadenza;
+        public final String stato;
+
+        Evento(long tempo, String sede, String kit, String codice, String lotto,
+               int quantita, int soglia, LocalDate scadenza, String stato) {
+            this.tempo = tempo;
+            this.sede = sede;
+            this.kit = kit;
+            this.codice = codice;
+            this.lotto = lotto;
+            this.quantita = quantita;
+            this.soglia = soglia;
+            this.scadenza = scadenza;
+            this.stato = stato;
+        }
+
+        public boolean isSottoSoglia() {
+            return quantita < soglia;
+        }
+
+        boolean stessoStato(Evento altro) {
+            return altro != null && quantita == altro.quantita && soglia == altro.soglia
+                    && Objects.equals(scadenza, altro.scadenza) && Objects.equals(stato, altro.stato);
+        }
+
+        String chiaveArticolo() {
+            return chiaveKit(sede, kit) + '\u0000' + codice + '\u0000' + lotto;
+        }
+
+        public String toJson() {
+            return "{\"tempo\":\"" + Instant.ofEpochMilli(tempo) + "\",\"sede\":" + stringa(sede)
+                    + ",\"kit\":" + stringa(kit) + ",\"codice\":" + stringa(codice)
+                    + ",\"lotto\":" + stringa(lotto) + ",\"quantita\":" + quantita
+                    + ",\"soglia\":" + soglia + ",\"scadenza\":" + (scadenza != null ? "\"" + scadenza + "\"" : "null")
+                    + ",\"stato\":" + stringa(stato) + "}";
+        }
+
+        private static String stringa(String valore) {
+            return "\"" + ReportZipExporter.escapeJson(valore) + "\"";
+        }
+    }
+
+    public int registra(RichiestaReport richiesta) throws IOException {
+        return registra(richiesta.sede, richiesta.cassette());
+    }
+
+    /**
+     * Registra le variazioni di stato degli articoli valutati in una generazione.
+     * Restituisce il numero di eventi aggiunti.
+     */
+    public synchronized int registra(String sede, List<ReportGenerator.Sezione> cassette) throws IOException {
+        if (chiuso) {
+            throw new IOException("Storico chiuso: " + directory);
+        }
+        // Tempi strettamente non decrescenti anche se l'orologio di sistema torna indietro
+        long tempo = Math.max(System.currentTimeMillis(), indici.ultimoTempo);
+        int aggiunti = 0;
+        int segmentiPrima = segmenti.size();
+        for (ReportGenerator.Sezione sezione : cassette) {
+            for (ReportGenerator.Articolo articolo : sezione.articoli) {
+                String lotto = articolo.lotto.isEmpty() ? articolo.seriale : articolo.lotto;
+                Evento evento = new Evento(tempo, sede, sezione.titolo, articolo.codice, lotto,
+                        articolo.quantitaAttuale, articolo.sogliaMinima, scadenza(articolo.scadenza), articolo.stato);
+                if (!evento.stessoStato(indici.ultimoStato.get(evento.chiaveArticolo()))) {
+                    aggiungi(evento);
+                    aggiunti++;
+                }
+            }
+        }
+        if (aggiunti > 0) {
+            segmentoAttivo().buffer.force();
+        }
+        if (segmenti.size() > segmentiPrima && segmentiChiusi() >= SOGLIA_COMPATTAZIONE) {
+            avviaCompattazione();
+        }
+        return aggiunti;
+    }
+
+    // Compattazione in background: chi registra non attende la lettura dei segmenti chiusi
+    private void avviaCompattazione() {
+        if (compattatore != null && compattatore.isAlive()) {
+            return;
+        }
+        compattatore = new Thread(() -> {
+            try {
+                compatta(FINESTRA_DETTAGLIO);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("❌ Compattazione dello storico non riuscita: " + e.getMessage());
+            }
+        }, "storico-compattazione");
+        compattatore.setDaemon(true);
+        compattatore.start();
+    }
+
+    /**
+     * Eventi di un kit nell'intervallo [da, a), in ordine cronologico. Con sede
+     * {@code null} vengono considerati i kit con quel nome in tutte le sedi.
+     */
+    public synchronized List<Evento> storia(String sede, String kit, Instant da, Instant a) {
+        long inizio = da != null ? da.toEpochMilli() : Long.MIN_VALUE;
+        long fine = a != null ? a.toEpochMilli() : Long.MAX_VALUE;
+        List<Evento> eventi = new ArrayList<>();
+        for (Map.Entry<String, IndiceKit> voce : indici.perKit.entrySet()) {
+            IndiceKit indiceKit = voce.getValue();
+            if (!indiceKit.kit.equals(kit) || (sede != null && !indiceKit.sede.equals(sede))) {
+                continue;
+            }
+            for (int i = indiceKit.primoDa(inizio); i < indiceKit.numero && indiceKit.tempi[i] < fine; i++) {
+                eventi.add(leggi(indiceKit.posizioni[i]));
+            }
+        }
+        eventi.sort((e1, e2) -> Long.compare(e1.tempo, e2.tempo));
+        return eventi;
+    }
+
+    /**
+     * Passaggi sotto soglia di un kit: eventi in cui un articolo scende sotto la
+     * soglia minima partendo da una quantità sufficiente (o alla prima registrazione).
+     */
+    public synchronized List<Evento> ingressiSottoSoglia(String sede, String kit, Instant da, Instant a) {
+        // Lo stato precedente va cercato anche prima di "da"
+        List<Evento> tutti = storia(sede, kit, null, a);
+        long inizio = da != null ? da.toEpochMilli() : Long.MIN_VALUE;
+        Map<String, Evento> precedenti = new HashMap<>();
+        List<Evento> ingressi = new ArrayList<>();
+        for (Evento evento : tutti) {
+            Evento precedente = precedenti.put(evento.chiaveArticolo(), evento);
+            if (evento.isSottoSoglia() && (precedente == null || !precedente.isSottoSoglia()) && evento.tempo >= inizio) {
+                ingressi.add(evento);
+            }
+        }
+        return ingressi;
+    }
+
+    /**
+     * Fonde i segmenti chiusi riducendo gli eventi più vecchi della finestra di
+     * dettaglio all'ultimo stato per articolo e giorno. Restituisce {@code false}
+     * se non c'era nulla da compattare. Lettura e scrittura avvengono senza bloccare
+     * le registrazioni, che attendono solo la sostituzione finale dei segmenti.
+     */
+    public boolean compatta(Duration finestraDettaglio) throws IOException {
+        synchronized (lockCompattazione) {
+            List<Segmento> chiusi;
+            int numero;
+            synchronized (this) {
+                if (chiuso) {
+                    throw new IOException("Storico chiuso: " + directory);
+                }
+                chiusi = new ArrayList<>(segmenti.subList(0, segmentiChiusi()));
+                if (chiusi.size() < 2) {
+                    return false;
+                }
+                numero = prossimoNumero++;
+            }
+
+            Segmento compattato = scriviCompattato(chiusi, numero, finestraDettaglio);
+            Indici nuovi = new Indici();
+            indicizza(compattato, 0, nuovi);
+
+            synchronized (this) {
+                if (chiuso) {
+                    // Il segmento compattato resta su disco ed è valido: verrà usato alla riapertura
+                    compattato.chiudi();
+                    return true;
+                }
+                List<Segmento> successivi = new ArrayList<>(segmenti.subList(chiusi.size(), segmenti.size()));
+                for (int i = 0; i < successivi.size(); i++) {
+                    indicizza(successivi.get(i), i + 1, nuovi);
+                }
+                segmenti.clear();
+                segmenti.add(compattato);
+                segmenti.addAll(successivi);
+                indici = nuovi;
+            }
+
+            for (Segmento segmento : chiusi) {
+                segmento.chiudi();
+                try {
+                    Files.deleteIfExists(segmento.file);
+                } catch (IOException e) {
+                    // File ancora mappato (Windows): è coperto dal segmento compattato e verrà
+                    // eliminato alla prossima apertura
+                }
+            }
+            return true;
+        }
+    }
+
+    // Scrive in streaming il segmento compattato: due letture dei segmenti chiusi,
+    // senza tenere gli eventi in memoria
+    private Segmento scriviCompattato(List<Segmento> chiusi, int numero, Duration finestraDettaglio) throws IOException {
+        long limiteDettaglio = System.currentTimeMillis() - finestraDettaglio.toMillis();
+
+        // Primo passaggio: per gli eventi vecchi conta solo l'ultimo di ogni articolo per giorno
+        Map<String, Long> ultimoDelGiorno = new HashMap<>();
+        for (int s = 0; s < chiusi.size(); s++) {
+            Segmento segmento = chiusi.get(s);
+            ByteBuffer lettura = segmento.lettura();
+            while (lettura.position() < segmento.posizione) {
+                int inizio = lettura.position();
+                Evento evento = leggiRecord(lettura);
+                if (evento.tempo < limiteDettaglio) {
+                    long giorno = Instant.ofEpochMilli(evento.tempo).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+                    ultimoDelGiorno.put(evento.chiaveArticolo() + '\u0000' + giorno, posizione(s, inizio));
+                }
+            }
+        }
+        Set<Long> vecchiTenuti = new HashSet<>(ultimoDelGiorno.values());
+        ultimoDelGiorno.clear();
+
+        // Secondo passaggio: scrittura nell'ordine originale, senza stati ripetuti
+        int copreFinoA = 0;
+        for (Segmento segmento : chiusi) {
+            copreFinoA = Math.max(copreFinoA, segmento.numero);
+        }
+        Path destinazione = percorsoSegmento(numero);
+        Path temporaneo = destinazione.resolveSibling(destinazione.getFileName() + ".tmp");
+        long dimensione = DIMENSIONE_INTESTAZIONE;
+        try (FileChannel canale = FileChannel.open(temporaneo, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer blocco = ByteBuffer.allocate(256 * 1024);
+            blocco.put(intestazione(chiusi.get(0).ordine, copreFinoA, FLAG_COMPATTATO));
+            Map<String, Evento> precedenti = new HashMap<>();
+            CRC32 crc = new CRC32();
+            for (int s = 0; s < chiusi.size(); s++) {
+                Segmento segmento = chiusi.get(s);
+                ByteBuffer lettura = segmento.lettura();
+                while (lettura.position() < segmento.posizione) {
+                    int inizio = lettura.position();
+                    Evento evento = leggiRecord(lettura);
+                    boolean tenuto = evento.tempo >= limiteDettaglio || vecchiTenuti.contains(posizione(s, inizio));
+                    if (!tenuto || evento.stessoStato(precedenti.get(evento.chiaveArticolo()))) {
+                        continue;
+                    }
+                    precedenti.put(evento.chiaveArticolo(), evento);
+                    byte[] dati = codifica(evento);
+                    dimensione += 8 + dati.length;
+                    if (dimensione > Integer.MAX_VALUE - 8) {
+                        throw new IOException("Segmento compattato troppo grande: " + dimensione + " byte");
+                    }
+                    if (blocco.remaining() < 8 + dati.length) {
+                        scriviTutto(canale, blocco);
+                        if (blocco.capacity() < 8 + dati.length) {
+                            blocco = ByteBuffer.allocate(8 + dati.length);
+                        }
+                    }
+                    crc.reset();
+                    crc.update(dati);
+                    blocco.putInt(dati.length).putInt((int) crc.getValue()).put(dati);
+                }
+            }
+            scriviTutto(canale, blocco);
+            canale.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaneo);
+            throw e;
+        }
+        // Il nome definitivo è nuovo: nessun file esistente (o mappato) viene sostituito
+        Files.move(temporaneo, destinazione, StandardCopyOption.ATOMIC_MOVE);
+
+        FileChannel canale = FileChannel.open(destinazione, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = canale.map(FileChannel.MapMode.READ_WRITE, 0, dimensione);
+            Segmento compattato = new Segmento(numero, chiusi.get(0).ordine, destinazione, canale, buffer, true);
+            compattato.posizione = (int) dimensione;
+            return compattato;
+        } catch (IOException | RuntimeException e) {
+            canale.close();
+            throw e;
+        }
+    }
+
+    public synchronized int getNumeroSegmenti() {
+        return segmenti.size();
+    }
+
+    public synchronized int getNumeroKit() {
+        return indici.perKit.size();
+    }
+
+    /**
+     * Chiude lo storico attendendo l'eventuale compattazione in corso.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread inCorso;
+        synchronized (this) {
+            chiuso = true;
+            inCorso = compattatore;
+        }
+        if (inCorso != null) {
+            try {
+                inCorso.join();
+            } catch (InterruptedException e) {
+                // La compattazione vede lo storico chiuso e non sostituisce i segmenti
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                for (Segmento segmento : segmenti) {
+                    segmento.chiudi();
+                }
+                segmenti.clear();
+            } finally {
+                try {
+                    if (lock != null && lock.isValid()) {
+                        lock.release();
+                    }
+                } finally {
+                    canaleLock.close();
+                }
+            }
+        }
+    }
+
+    // ---- Segmenti ----
+
+    private static final class Segmento {
+        final int numero;
+        // Posizione in ordine cronologico: il numero stesso, o il primo segmento coperto se compattato
+        final int ordine;
+        final Path file;
+        final FileChannel canale;
+        final MappedByteBuffer buffer;
+        final boolean compattato;
+        int posizione;
+
+        Segmento(int numero, int ordine, Path file, FileChannel canale, MappedByteBuffer buffer, boolean compattato) {
+            this.numero = numero;
+            this.ordine = ordine;
+            this.file = file;
+            this.canale = canale;
+            this.buffer = buffer;
+            this.compattato = compattato;
+        }
+
+        ByteBuffer lettura() {
+            ByteBuffer lettura = buffer.duplicate();
+            lettura.position(DIMENSIONE_INTESTAZIONE);
+            return lettura;
+        }
+
+        void chiudi() throws IOException {
+            canale.close();
+        }
+    }
+
+    private void carica() throws IOException {
+        segmenti.clear();
+        indici = new Indici();
+
+        List<Path> file = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path percorso : stream) {
+                String nome = percorso.getFileName().toString();
+                if (nome.startsWith(PREFISSO) && nome.endsWith(ESTENSIONE + ".tmp")) {
+                    // Compattazione interrotta prima della ridenominazione: i segmenti originali sono intatti
+                    Files.delete(percorso);
+                } else if (nome.startsWith(PREFISSO) && nome.endsWith(ESTENSIONE)) {
+                    file.add(percorso);
+                }
+            }
+        }
+
+        // Un segmento compattato copre tutti gli altri con numero fino a copreFinoA:
+        // sono residui di una compattazione interrotta o non ancora eliminabili
+        Map<Path, int[]> intestazioni = new HashMap<>();
+        int massimo = 0;
+        for (Path percorso : file) {
+            int[] intestazione = leggiIntestazione(percorso);
+            intestazioni.put(percorso, intestazione);
+            massimo = Math.max(massimo, Math.max(numeroSegmento(percorso), intestazione[1]));
+        }
+        List<Path> validi = new ArrayList<>();
+        for (Path percorso : file) {
+            int numero = numeroSegmento(percorso);
+            boolean coperto = false;
+            for (Map.Entry<Path, int[]> voce : intestazioni.entrySet()) {
+                int[] intestazione = voce.getValue();
+                coperto |= (intestazione[2] & FLAG_COMPATTATO) != 0 && !voce.getKey().equals(percorso)
+                        && numero <= intestazione[1];
+            }
+            if (coperto) {
+                Files.delete(percorso);
+            } else {
+                validi.add(percorso);
+            }
+        }
+        validi.sort((p1, p2) -> Integer.compare(intestazioni.get(p1)[0], intestazioni.get(p2)[0]));
+        prossimoNumero = massimo + 1;
+
+        for (Path percorso : validi) {
+            int[] intestazione = intestazioni.get(percorso);
+            FileChannel canale = FileChannel.open(percorso, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = canale.map(FileChannel.MapMode.READ_WRITE, 0, canale.size());
+            Segmento segmento = new Segmento(numeroSegmento(percorso), intestazione[0], percorso, canale, buffer,
+                    (intestazione[2] & FLAG_COMPATTATO) != 0);
+            segmenti.add(segmento);
+            scansiona(segmento);
+        }
+
+        Segmento ultimo = segmenti.isEmpty() ? null : segmenti.get(segmenti.size() - 1);
+        if (ultimo == null || ultimo.compattato) {
+            nuovoSegmento(dimensioneSegmento);
+        }
+    }
+
+    // Legge i record validi del segmento aggiornando stato e indice; si ferma al primo record incompleto
+    private void scansiona(Segmento segmento) {
+        ByteBuffer lettura = segmento.lettura();
+        CRC32 crc = new CRC32();
+        while (lettura.remaining() >= 8) {
+            int inizio = lettura.position();
+            int lunghezza = lettura.getInt();
+            int controllo = lettura.getInt();
+            if (lunghezza <= 0 || lunghezza > lettura.remaining()) {
+                lettura.position(inizio);
+                break;
+            }
+            ByteBuffer dati = lettura.slice();
+            dati.limit(lunghezza);
+            crc.reset();
+            crc.update(dati.duplicate());
+            if ((int) crc.getValue() != controllo) {
+                lettura.position(inizio);
+                break;
+            }
+            Evento evento = decodifica(dati);
+            lettura.position(inizio + 8 + lunghezza);
+            indici.aggiungi(evento, posizione(segmenti.size() - 1, inizio));
+        }
+        segmento.posizione = lettura.position();
+        // Azzera un eventuale record troncato perché le scritture successive ripartano pulite
+        for (int i = segmento.posizione; i < Math.min(segmento.buffer.capacity(), segmento.posizione + 8); i++) {
+            segmento.buffer.put(i, (byte) 0);
+        }
+    }
+
+    private Segmento nuovoSegmento(int capacita) throws IOException {
+        int numero = prossimoNumero++;
+        Path percorso = percorsoSegmento(numero);
+        FileChannel canale = FileChannel.open(percorso, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = canale.map(FileChannel.MapMode.READ_WRITE, 0, capacita);
+        buffer.put(intestazione(numero, numero, 0));
+        buffer.force();
+        Segmento segmento = new Segmento(numero, numero, percorso, canale, buffer, false);
+        segmento.posizione = DIMENSIONE_INTESTAZIONE;
+        segmenti.add(segmento);
+        return segmento;
+    }
+
+    private Segmento segmentoAttivo() {
+        return segmenti.get(segmenti.size() - 1);
+    }
+
+    private int segmentiChiusi() {
+        return segmenti.size() - 1;
+    }
+
+    private void aggiungi(Evento evento) throws IOException {
+        byte[] dati = codifica(evento);
+        Segmento segmento = segmentoAttivo();
+        if (segmento.posizione + 8 + dati.length > segmento.buffer.capacity()) {
+            segmento.buffer.force();
+            segmento = nuovoSegmento(Math.max(dimensioneSegmento, DIMENSIONE_INTESTAZIONE + 8 + dati.length));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(dati);
+        int inizio = segmento.posizione;
+        // Il campo lunghezza è scritto per ultimo: un record è visibile solo se completo
+        segmento.buffer.putInt(inizio + 4, (int) crc.getValue());
+        segmento.buffer.put(inizio + 8, dati);
+        segmento.buffer.putInt(inizio, dati.length);
+        segmento.posizione = inizio + 8 + dati.length;
+        indici.aggiungi(evento, posizione(segmenti.size() - 1, inizio));
+    }
+
+    // Indicizza i record già validati di un segmento (fino alla sua posizione di scrittura)
+    private static void indicizza(Segmento segmento, int indiceSegmento, Indici indici) {
+        ByteBuffer lettura = segmento.lettura();
+        while (lettura.position() < segmento.posizione) {
+            int inizio = lettura.position();
+            indici.aggiungi(leggiRecord(lettura), posizione(indiceSegmento, inizio));
+        }
+    }
+
+    private Evento leggi(long posizione) {
+        Segmento segmento = segmenti.get((int) (posizione >>> 32));
+        ByteBuffer lettura = segmento.buffer.duplicate();
+        lettura.position((int) posizione);
+        return leggiRecord(lettura);
+    }
+
+    private static Evento leggiRecord(ByteBuffer lettura) {
+        int lunghezza = lettura.getInt();
+        lettura.getInt();
+        ByteBuffer dati = lettura.slice();
+        dati.limit(lunghezza);
+        lettura.position(lettura.position() + lunghezza);
+        return decodifica(dati);
+    }
+
+    private static long posizione(int indiceSegmento, int offset) {
+        return ((long) indiceSegmento << 32) | offset;
+    }
+
+    private Path percorsoSegmento(int numero) {
+        return directory.resolve(String.format("%s%08d%s", PREFISSO, numero, ESTENSIONE));
+    }
+
+    private static int numeroSegmento(Path percorso) {
+        String nome = percorso.getFileName().toString();
+        return Integer.parseInt(nome.substring(PREFISSO.length(), nome.length() - ESTENSIONE.length()));
+    }
+
+    private static byte[] intestazione(int ordine, int copreFinoA, int flag) {
+        ByteBuffer intestazione = ByteBuffer.allocate(DIMENSIONE_INTESTAZIONE);
+        intestazione.put(MAGIA).putInt(VERSIONE).putInt(ordine).putInt(copreFinoA).putInt(flag);
+        return intestazione.array();
+    }
+
+    // ordine, copreFinoA, flag
+    private static int[] leggiIntestazione(Path percorso) throws IOException {
+        ByteBuffer intestazione = ByteBuffer.allocate(DIMENSIONE_INTESTAZIONE);
+        try (FileChannel canale = FileChannel.open(percorso, StandardOpenOption.READ)) {
+            while (intestazione.hasRemaining() && canale.read(intestazione) >= 0) {
+                // lettura completa dell'intestazione
+            }
+        }
+        intestazione.flip();
+        byte[] magia = new byte[MAGIA.length];
+        if (intestazione.remaining() < DIMENSIONE_INTESTAZIONE) {
+            throw new IOException("Segmento di storico troncato: " + percorso);
+        }
+        intestazione.get(magia);
+        if (!Arrays.equals(magia, MAGIA) || intestazione.getInt() != VERSIONE) {
+            throw new IOException("Segmento di storico non riconosciuto: " + percorso);
+        }
+        return new int[]{intestazione.getInt(), intestazione.getInt(), intestazione.getInt()};
+    }
+
+    private static void scriviTutto(FileChannel canale, ByteBuffer blocco) throws IOException {
+        blocco.flip();
+        while (blocco.hasRemaining()) {
+            canale.write(blocco);
+        }
+        blocco.clear();
+    }
+
+    // ---- Codifica dei record ----
+
+    private static byte[] codifica(Evento evento) {
+        byte[][] testi = {utf8(evento.sede), utf8(evento.kit), utf8(evento.codice), utf8(evento.lotto), utf8(evento.stato)};
+        int dimensione = 8 + 4 + 4 + 4;
+        for (byte[] testo : testi) {
+            dimensione += 2 + testo.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(dimensione);
+        record.putLong(evento.tempo);
+        for (int i = 0; i < 4; i++) {
+            record.putShort((short) testi[i].length).put(testi[i]);
+        }
+        record.putInt(evento.quantita).putInt(evento.soglia)
+                .putInt(evento.scadenza != null ? (int) evento.scadenza.toEpochDay() : SENZA_SCADENZA);
+        record.putShort((short) testi[4].length).put(testi[4]);
+        return record.array();
+    }
+
+    private static Evento decodifica(ByteBuffer record) {
+        long tempo = record.getLong();
+        String sede = testo(record);
+        String kit = testo(record);
+        String codice = testo(record);
+        String lotto = testo(record);
+        int quantita = record.getInt();
+        int soglia = record.getInt();
+        int giorno = record.getInt();
+        String stato = testo(record);
+        return new Evento(tempo, sede, kit, codice, lotto, quantita, soglia,
+                giorno != SENZA_SCADENZA ? LocalDate.ofEpochDay(giorno) : null, stato);
+    }
+
+    private static byte[] utf8(String testo) {
+        byte[] dati = (testo != null ? testo : "").getBytes(StandardCharsets.UTF_8);
+        // I campi sono brevi (codici, descrizioni di kit): oltre 32KB vengono troncati
+        return dati.length <= Short.MAX_VALUE ? dati : Arrays.copyOf(dati, Short.MAX_VALUE);
+    }
+
+    private static String testo(ByteBuffer record) {
+        byte[] dati = new byte[record.getShort()];
+        record.get(dati);
+        return new String(dati, StandardCharsets.UTF_8);
+    }
+
+    private static LocalDate scadenza(String scadenza) {
+        if (scadenza == null || scadenza.isEmpty() || scadenza.equals("N/D")) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(scadenza, FORMATO_SCADENZA);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String chiaveKit(String sede, String kit) {
+        return sede + '\u0000' + kit;
+    }
+
+    /**
+     * Stato derivato dai segmenti: ultimo stato registrato per articolo (sede, kit,
+     * codice, lotto) e indice per kit (sede, kit). Dopo una compattazione viene
+     * ricostruito a parte e sostituito per intero.
+     */
+    private static final class Indici {
+        final Map<String, Evento> ultimoStato = new HashMap<>();
+        final Map<String, IndiceKit> perKit = new HashMap<>();
+        long ultimoTempo;
+
+        void aggiungi(Evento evento, long posizione) {
+            ultimoStato.put(evento.chiaveArticolo(), evento);
+            perKit.computeIfAbsent(chiaveKit(evento.sede, evento.kit), k -> new IndiceKit(evento.sede, evento.kit))
+                    .aggiungi(evento.tempo, posizione);
+            ultimoTempo = Math.max(ultimoTempo, evento.tempo);
+        }
+    }
+
+    /**
+     * Tempi e posizioni degli eventi di un kit, in ordine cronologico.
+     */
+    private static final class IndiceKit {
+        final String sede;
+        final String kit;
+        long[] tempi = new long[16];
+        long[] posizioni = new long[16];
+        int numero;
+
+        IndiceKit(String sede, String kit) {
+            this.sede = sede;
+            this.kit = kit;
+        }
+
+        void aggiungi(long tempo, long posizione) {
+            if (numero == tempi.length) {
+                tempi = Arrays.copyOf(tempi, numero * 2);
+                posizioni = Arrays.copyOf(posizioni, numero * 2);
+            }
+            tempi[numero] = tempo;
+            posizioni[numero] = posizione;
+            numero++;
+        }
+
+        // Primo indice con tempo >= inizio
+        int primoDa(long inizio) {
+            int basso = 0;
+            int alto = numero;
+            while (basso < alto) {
+                int medio = (basso + alto) >>> 1;
+                if (tempi[medio] < inizio) {
+                    basso = medio + 1;
+                } else {
+                    alto = medio;
+                }
+            }
+            return basso;
+        }
+    }
+}
+//EOF
@@ -0,0 +1,195 @@
+// tests/linearizzato.test.js
+// Verifica della struttura dei PDF linearizzati prodotti da ReportGenerator --linearizzato
+// e del tempo alla prima pagina tramite un server HTTP locale con Range e banda limitata
+
+const assert = require('assert');
+const fs = require('fs');
+const http = require('http');
+const path = require('path');
+const { spawnSync } = require('child_process');
+
+const RADICE = path.join(__dirname, '..');
+const CLASSI = path.join(RADICE, 'target', 'classes');
+// Banda del server di prova: stand-in di una connessione lenta
+const BYTE_AL_SECONDO = 128 * 1024;
+
+function compilaSeNecessario() {
+  if (fs.existsSync(path.join(CLASSI, 'ReportGenerator.class'))) return;
+  const mvn = spawnSync('mvn', ['-B', '-q', 'compile'], { cwd: RADICE, stdio: 'inherit', shell: process.platform === 'win32' });
+  assert(mvn.status === 0, 'Compilazione Maven fallita: eseguire mvn compile');
+}
+
+// Dati nel formato di parseKitsData: codiceKit,ubicazione,codiceArticolo,descrizione,quantita,scadenza,stato
+function datiKit(kit, articoli) {
+  const elenco = [];
+  for (let k = 0; k < kit; k++) {
+    const righe = [];
+    for (let a = 0; a < articoli; a++) {
+      righe.push(`K${k},Armadio ${k % 7},A${a},Articolo ${a},${2 + a % 5},01/0${1 + a % 9}/2027,${k % 3 === 0 && a === 0 ? 'SCADUTO' : 'OK'}`);
+    }
+    elenco.push(righe.join(';'));
+  }
+  return elenco.join('|');
+}
+
+function genera(opzioni) {
+  const cp = [CLASSI, path.join(RADICE, 'lib', '*')].join(path.delimiter);
+  const args = ['-cp', cp, 'ReportGenerator', '--stdout', ...opzioni,
+    'Operatore Test', datiKit(120, 8), 'Sede Test', 'Rev.01',
+    path.join(RADICE, 'assets', 'firme', 'admin.png'), path.join(RADICE, 'assets', 'firme', 'operatore_1.png')];
+  const java = spawnSync('java', args, { cwd: RADICE, maxBuffer: 64 * 1024 * 1024 });
+  assert(java.status === 0, `ReportGenerator terminato con codice ${java.status}: ${java.stderr}`);
+  return java.stdout;
+}
+
+function numero(dizionario, chiave) {
+  const m = new RegExp(`/${chiave}\\s+(\\d+)`).exec(dizionario);
+  assert(m, `Chiave /${chiave} mancante nel dizionario di linearizzazione`);
+  return parseInt(m[1], 10);
+}
+
+// Tabella xref all'offset indicato: oggetti in uso, trailer e posizione della prima voce
+function leggiXref(pdf, offset) {
+  assert.strictEqual(pdf.toString('latin1', offset, offset + 4), 'xref', `Nessuna tabella xref all'offset ${offset}`);
+  let pos = pdf.indexOf('\n', offset) + 1;
+  const offsets = new Map();
+  let primaVoce = -1;
+  for (;;) {
+    const fine = pdf.indexOf('\n', pos);
+    const riga = pdf.toString('latin1', pos, fine).trim();
+    if (riga.startsWith('trailer')) break;
+    const [primo, quanti] = riga.split(/\s+/).map(Number);
+    pos = fine + 1;
+    if (primaVoce < 0) primaVoce = pos;
+    for (let i = 0; i < quanti; i++, pos += 20) {
+      const voce = pdf.toString('latin1', pos, pos + 20);
+      if (voce[17] === 'n') offsets.set(primo + i, parseInt(voce.slice(0, 10), 10));
+    }
+  }
+  const trailer = pdf.toString('latin1', pos, pdf.indexOf('>>', pos) + 2);
+  return { offsets, trailer, primaVoce };
+}
+
+// Oggetti raggiungibili dalla pagina indicata, esclusi i riferimenti al /Parent
+function oggettiPagina(pdf, offsets, pagina) {
+  const visti = new Set();
+  const daVisitare = [pagina];
+  while (daVisitare.length > 0) {
+    const n = daVisitare.pop();
+    if (visti.has(n)) continue;
+    visti.add(n);
+    const inizio = offsets.get(n);
+    let corpo = pdf.toString('latin1', inizio, pdf.indexOf('endobj', inizio));
+    const flusso = corpo.indexOf('stream');
+    if (flusso >= 0) corpo = corpo.slice(0, flusso);
+    corpo = corpo.replace(/\/Parent\s+\d+ 0 R/g, '');
+    for (const m of corpo.matchAll(/(\d+) 0 R/g)) daVisitare.push(parseInt(m[1], 10));
+  }
+  return visti;
+}
+
+function verificaStruttura(pdf) {
+  const testa = /^%PDF-\d\.\d\n%[^\n]*\n(\d+) 0 obj\n<<([\s\S]*?)>>\s*\nendobj\n/.exec(pdf.toString('latin1', 0, 2048));
+  assert(testa && testa[2].includes('/Linearized'), 'Il dizionario di linearizzazione deve essere il primo oggetto');
+  const lin = testa[2];
+  const L = numero(lin, 'L'), O = numero(lin, 'O'), E = numero(lin, 'E'), N = numero(lin, 'N'), T = numero(lin, 'T');
+  const H = /\/H\s*\[\s*(\d+)\s+(\d+)\s*\]/.exec(lin).slice(1).map(Number);
+  assert.strictEqual(L, pdf.length, '/L deve essere la lunghezza del file');
+
+  // xref della prima pagina (in testa) e principale (/Prev), ogni offset punta al proprio oggetto
+  const startxref = parseInt(/startxref\s+(\d+)\s+%%EOF\s*$/.exec(pdf.toString('latin1', pdf.length - 64))[1], 10);
+  const primaPagina = leggiXref(pdf, startxref);
+  const principale = leggiXref(pdf, numero(primaPagina.trailer, 'Prev'));
+  assert.strictEqual(T, principale.primaVoce - 1, '/T deve precedere la prima voce della xref principale');
+  assert.strictEqual(pdf.toString('latin1', T, T + 1), '\n');
+  const offsets = new Map([...principale.offsets, ...primaPagina.offsets]);
+  for (const [n, offset] of offsets) {
+    assert(pdf.toString('latin1', offset, offset + 20).startsWith(`${n} 0 obj`), `Offset errato per l'oggetto ${n}: ${offset}`);
+  }
+
+  // /N pagine, /O prima pagina
+  const pagine = [...offsets].filter(([, offset]) =>
+    /^\d+ 0 obj\s*<<[\s\S]*?\/Type\s*\/Page(?![s\w])/.test(pdf.toString('latin1', offset, pdf.indexOf('endobj', offset))));
+  assert.strictEqual(N, pagine.length, '/N deve essere il numero di pagine');
+  assert(pdf.toString('latin1', offsets.get(O), pdf.indexOf('endobj', offsets.get(O))).match(/\/Type\s*\/Page(?![s\w])/),
+    '/O deve essere l\'oggetto della prima pagina');
+
+  // Tutti gli oggetti della prima pagina terminano entro /E
+  const oggetti = oggettiPagina(pdf, offsets, O);
+  for (const n of oggetti) {
+    const fine = pdf.indexOf('endobj', offsets.get(n)) + 'endobj'.length;
+    assert(fine <= E + 1, `L'oggetto ${n} della prima pagina termina a ${fine}, oltre /E ${E}`);
+  }
+
+  // /H: hint stream; la tabella delle pagine indica la prima pagina con offset che ignorano l'hint stream
+  const hint = pdf.subarray(H[0], H[0] + H[1]);
+  assert(hint.toString('latin1', 0, 20).startsWith(`${Math.max(...primaPagina.offsets.keys())} 0 obj`),
+    '/H deve indicare l\'hint stream, ultimo oggetto della sezione di prima pagina');
+  const dati = hint.indexOf('stream\n') + 'stream\n'.length;
+  let posizionePrimaPagina = hint.readUInt32BE(dati + 4);
+  if (posizionePrimaPagina >= H[0]) posizionePrimaPagina += H[1];
+  assert.strictEqual(posizionePrimaPagina, offsets.get(O), 'La tabella di hint deve indicare l\'offset della prima pagina');
+
+  console.log(`[test] struttura linearizzata OK: ${N} pagine, ${oggetti.size} oggetti di prima pagina entro ${E}/${L} byte`);
+  return E;
+}
+
+// Server con supporto Range che consegna a banda limitata
+function avviaServer(file) {
+  const server = http.createServer((req, res) => {
+    const pdf = file[req.url.slice(1)];
+    let inizio = 0, fine = pdf.length - 1;
+    const range = /bytes=(\d*)-(\d*)/.exec(req.headers.range || '');
+    if (range) {
+      inizio = parseInt(range[1], 10);
+      if (range[2]) fine = Math.min(fine, parseInt(range[2], 10));
+    }
+    res.writeHead(range ? 206 : 200, { 'Content-Length': fine - inizio + 1, 'Accept-Ranges': 'bytes' });
+    const blocco = 16 * 1024;
+    (function invia(pos) {
+      if (pos > fine) return res.end();
+      const fino = Math.min(fine + 1, pos + blocco);
+      res.write(pdf.subarray(pos, fino));
+      setTimeout(() => invia(fino), (fino - pos) * 1000 / BYTE_AL_SECONDO);
+    })(inizio);
+  });
+  return new Promise(resolve => server.listen(0, '127.0.0.1', () => resolve(server)));
+}
+
+async function scarica(porta, nome, range) {
+  const res = await fetch(`http://127.0.0.1:${porta}/${nome}`, { headers: range ? { Range: range } : {} });
+  return Buffer.from(await res.arrayBuffer());
+}
+
+// Client "a pagine": legge il primo KB e, se il file è linearizzato, solo fino a /E
+async function tempoPrimaPagina(porta, nome) {
+  const inizio = process.hrtime.bigint();
+  const testa = await scarica(porta, nome, 'bytes=0-1023');
+  const lin = /\/Linearized[\s\S]*?\/E\s+(\d+)/.exec(testa.toString('latin1'));
+  const resto = lin ? await scarica(porta, nome, `bytes=1024-${lin[1]}`) : await scarica(porta, nome);
+  return { byte: testa.length + resto.length, ms: Number(process.hrtime.bigint() - inizio) / 1e6 };
+}
+
+(async () => {
+  compilaSeNecessario();
+  const standard = genera([]);
+  const linearizzato = genera(['--linearizzato']);
+  verificaStruttura(linearizzato);
+
+  const server = await avviaServer({ 'standard.pdf': standard, 'linearizzato.pdf': linearizzato });
+  try {
+    const porta = server.address().port;
+    const tStandard = await tempoPrimaPagina(porta, 'standard.pdf');
+    const tLinearizzato = await tempoPrimaPagina(porta, 'linearizzato.pdf');
+    console.log(`[test] prima pagina a ${BYTE_AL_SECONDO / 1024} KB/s: standard ${tStandard.byte} byte in ${tStandard.ms.toFixed(0)} ms, ` +
+      `linearizzato ${tLinearizzato.byte} byte in ${tLinearizzato.ms.toFixed(0)} ms`);
+    assert(tLinearizzato.byte < tStandard.byte / 2, 'La prima pagina linearizzata deve richiedere meno della metà del file');
+    assert(tLinearizzato.ms < tStandard.ms, 'La prima pagina linearizzata deve arrivare prima del file standard');
+  } finally {
+    server.close();
+  }
+  console.log('[test] linearizzato OK');
+})().catch(err => {
+  console.error('[test] linearizzato FAILED', err);
+  process.exit(1);
+});